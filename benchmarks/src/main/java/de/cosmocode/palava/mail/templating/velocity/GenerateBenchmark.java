@@ -0,0 +1,163 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.mail.templating.velocity;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.mail.templating.LocalizedMailTemplate;
+import de.cosmocode.palava.mail.templating.MailAttachmentTemplate;
+import de.cosmocode.palava.mail.templating.TemplateEngine;
+import de.cosmocode.palava.mail.templating.TemplateException;
+
+/**
+ * Benchmarks {@link VelocityTemplateEngine#generate(LocalizedMailTemplate, Map)}
+ * for different body sizes and numbers of snippets.
+ *
+ * @author Tobias Sarnowski
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GenerateBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+    
+    @Param({"0", "10", "50"})
+    public int snippets;
+    
+    private VelocityTemplateEngine engine;
+    
+    private LocalizedMailTemplate template;
+    
+    private Map<String, Object> variables;
+    
+    @Setup
+    public void setUp() {
+        final int paragraphs;
+        if ("small".equals(size)) {
+            paragraphs = 1;
+        } else if ("medium".equals(size)) {
+            paragraphs = 50;
+        } else {
+            paragraphs = 1000;
+        }
+        
+        final Map<String, String> snippetSources = Maps.newHashMap();
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < paragraphs; i++) {
+            body.append("<p>Dear $name, your order #$order has been shipped. ");
+            body.append("#if($express)It will arrive tomorrow.#else It will arrive soon.#end</p>\n");
+        }
+        for (int i = 0; i < snippets; i++) {
+            snippetSources.put("snippet" + i, "<p>Snippet " + i + " for $name, $company.</p>");
+            body.append("$snippet").append(i).append('\n');
+        }
+        
+        engine = new VelocityTemplateEngine();
+        template = new BenchmarkTemplate("Your order #$order", body.toString(), snippetSources);
+        variables = ImmutableMap.<String, Object>of(
+            "name", "John Doe",
+            "order", 4711,
+            "express", Boolean.TRUE,
+            "company", "Smith & Sons"
+        );
+    }
+    
+    @Benchmark
+    public LocalizedMailTemplate generate() throws TemplateException {
+        return engine.generate(template, variables);
+    }
+    
+    /**
+     * A static template without attachments.
+     *
+     * @author Tobias Sarnowski
+     */
+    private static final class BenchmarkTemplate implements LocalizedMailTemplate {
+        
+        private final String subject;
+        
+        private final String body;
+        
+        private final Map<String, String> snippets;
+        
+        public BenchmarkTemplate(String subject, String body, Map<String, String> snippets) {
+            this.subject = subject;
+            this.body = body;
+            this.snippets = snippets;
+        }
+        
+        @Override
+        public String getName() {
+            return "benchmark";
+        }
+        
+        @Override
+        public String getSubject() {
+            return subject;
+        }
+        
+        @Override
+        public String getBody() {
+            return body;
+        }
+        
+        @Override
+        public Map<String, String> getSnippets() {
+            return snippets;
+        }
+        
+        @Override
+        public Set<MailAttachmentTemplate> getEmbedded() {
+            return Collections.emptySet();
+        }
+        
+        @Override
+        public Set<MailAttachmentTemplate> getAttachments() {
+            return Collections.emptySet();
+        }
+        
+        @Override
+        public Class<? extends TemplateEngine> getTemplateEngine() {
+            return VelocityTemplateEngine.class;
+        }
+        
+    }
+    
+}
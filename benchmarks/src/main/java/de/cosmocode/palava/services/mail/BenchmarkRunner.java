@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line with the gc profiler
+ * enabled, which reports the bytes allocated per operation.
+ *
+ * @author Willi Schoenborn
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+        
+    }
+    
+    /**
+     * Runs the benchmarks.
+     * 
+     * @param args jmh command line arguments
+     * @throws Exception if running failed
+     */
+    public static void main(String[] args) throws Exception {
+        final Options options = new OptionsBuilder().
+            parent(new CommandLineOptions(args)).
+            addProfiler(GCProfiler.class).
+            build();
+        new Runner(options).run();
+    }
+    
+}
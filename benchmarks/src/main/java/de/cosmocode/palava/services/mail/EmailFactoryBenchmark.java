@@ -0,0 +1,104 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.mail.Email;
+import org.jdom.Document;
+import org.jdom.input.SAXBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks reading the rendered envelope, using the streaming {@link EnvelopeReader}
+ * and the former jdom path, and {@link EmailFactory#build(Envelope, Embedder)}
+ * from an already parsed envelope.
+ *
+ * @author Willi Schoenborn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EmailFactoryBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int paragraphs;
+    
+    private String xml;
+    
+    private Envelope envelope;
+    
+    private Document document;
+    
+    private final File resourcePath = new File(System.getProperty("java.io.tmpdir"));
+    
+    @Setup
+    public void setUp() throws Exception {
+        final StringBuilder html = new StringBuilder();
+        for (int i = 0; i < paragraphs; i++) {
+            html.append("&lt;p&gt;Lorem ipsum dolor sit amet, consectetur adipisici elit, ");
+            html.append("sed eiusmod tempor incidunt ut labore et dolore magna aliqua.&lt;/p&gt;\n");
+        }
+        xml = "<mail>\n" +
+            "  <subject>Your order</subject>\n" +
+            "  <from name=\"Shop\">shop@example.com</from>\n" +
+            "  <to name=\"Customer\">customer@example.com</to>\n" +
+            "  <bcc>archive@example.com;audit@example.com</bcc>\n" +
+            "  <replyTo>support@example.com</replyTo>\n" +
+            "  <message type=\"plain\">Thank you for your order.</message>\n" +
+            "  <message type=\"html\">" + html + "</message>\n" +
+            "</mail>\n";
+        envelope = readEnvelope();
+        document = parseDocument();
+    }
+    
+    @Benchmark
+    public Envelope readEnvelope() throws Exception {
+        return EnvelopeReader.getInstance().read(new StringReader(xml));
+    }
+    
+    @Benchmark
+    public Document parseDocument() throws Exception {
+        return new SAXBuilder().build(new StringReader(xml));
+    }
+    
+    @Benchmark
+    public Email buildFromEnvelope() throws Exception {
+        return EmailFactory.getInstance().build(envelope, new Embedder(resourcePath));
+    }
+    
+    @Benchmark
+    public Email buildFromDocument() throws Exception {
+        return EmailFactory.getInstance().build(document, new Embedder(resourcePath));
+    }
+    
+}
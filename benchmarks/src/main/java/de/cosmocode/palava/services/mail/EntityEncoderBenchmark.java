@@ -0,0 +1,95 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link EntityEncoder} on input with and without special characters,
+ * compared to the previous implementation chaining {@link String#replace(CharSequence, CharSequence)}.
+ *
+ * @author Willi Schoenborn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntityEncoderBenchmark {
+
+    @Param({"clean", "dirty"})
+    public String input;
+    
+    private final EntityEncoder encoder = EntityEncoder.getInstance();
+    
+    private String source;
+    
+    @Setup
+    public void setUp() {
+        if ("clean".equals(input)) {
+            source = "Dear customer, thank you for your order. It will be shipped within two days.";
+        } else {
+            source = "Dear \"customer\", <b>thank you</b> for your order at Smith & Sons. 100% 'guaranteed'.";
+        }
+    }
+    
+    /**
+     * A copy of the encoder before the single pass rewrite, kept as baseline.
+     */
+    static String legacyEncode(String source) {
+        return source == null ? "" : source.
+            replace("&",  "&amp;").
+            replace(">",  "&gt;").
+            replace("<",  "&lt;").
+            replace("'",  "&apos;").
+            replace("\"", "&quot;").
+            replace("%",  "&#37;");
+    }
+    
+    @Benchmark
+    public String encodeLegacy() {
+        return legacyEncode(source);
+    }
+    
+    @Benchmark
+    public String encode() {
+        return encoder.encode(source);
+    }
+    
+    @Benchmark
+    public StringWriter encodeToWriter() throws IOException {
+        final StringWriter writer = new StringWriter(128);
+        encoder.encode(source, writer);
+        return writer;
+    }
+    
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+/**
+ * A {@link Transport} which accepts every message without sending it.
+ * Messages are serialized into a discarding stream, like a real transport
+ * would write them to its socket, so encoding costs are part of the measurement.
+ * Installed using the "mail.smtp.class" system property.
+ *
+ * @author Willi Schoenborn
+ */
+public final class NoopTransport extends Transport {
+
+    public NoopTransport(Session session, URLName name) {
+        super(session, name);
+    }
+    
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password) {
+        return true;
+    }
+    
+    private static final OutputStream DISCARD = new OutputStream() {
+        
+        @Override
+        public void write(int b) {
+            
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+            
+        }
+        
+    };
+    
+    @Override
+    public void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        try {
+            message.writeTo(DISCARD);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to serialize message", e);
+        }
+    }
+    
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+/**
+ * Benchmarks {@link VelocityMailService#sendMessage(String, String, Map, String...)}
+ * end to end, delivering to a {@link NoopTransport}. Every message carries a binary
+ * attachment, which is encoded on every send unless the encoded part cache keeps it.
+ *
+ * @author Willi Schoenborn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dmail.smtp.class=de.cosmocode.palava.services.mail.NoopTransport")
+public class SendMessageBenchmark {
+
+    private static final String TEMPLATE = "<mail>\n" +
+        "  <subject>Your order, $entity.encode($name)</subject>\n" +
+        "  <from name=\"Shop\">shop@example.com</from>\n" +
+        "  <to name=\"$entity.encode($name)\">$email</to>\n" +
+        "  <replyTo>support@example.com</replyTo>\n" +
+        "  <message type=\"plain\">Dear $entity.encode($name), thank you for your order.</message>\n" +
+        "  <message type=\"html\">#foreach($i in [1..$paragraphs])" +
+        "&lt;p&gt;Dear $entity.encode($name), thank you for your order.&lt;/p&gt;#end</message>\n" +
+        "  <attachment name=\"invoice.pdf\" description=\"Invoice\" path=\"$invoice\"/>\n" +
+        "</mail>\n";
+    
+    private static final int INVOICE_SIZE = 256 * 1024;
+    
+    @Param({"0", "4"})
+    public int maxConnections;
+    
+    @Param({"1", "100"})
+    public int paragraphs;
+    
+    // 0 disables the cache of encoded attachments, 8388608 is the default
+    @Param({"0", "8388608"})
+    public long encodedMaxSize;
+    
+    private File directory;
+    
+    private VelocityMailService service;
+    
+    private Map<String, Object> params;
+    
+    @Setup
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+        Files.write(TEMPLATE, new File(directory, "order.vm"), Charsets.UTF_8);
+        
+        final byte[] invoice = new byte[INVOICE_SIZE];
+        new Random(0L).nextBytes(invoice);
+        final File file = new File(directory, "invoice.pdf");
+        Files.write(invoice, file);
+        
+        final File properties = new File(directory, "velocity.properties");
+        Files.write(
+            "file.resource.loader.path=" + directory.getAbsolutePath() + "\n" +
+            "file.resource.loader.cache=true\n",
+            properties, Charsets.UTF_8
+        );
+        
+        service = new VelocityMailService(properties, "localhost");
+        service.setMaxConnections(maxConnections);
+        service.setEncodedMaxSize(encodedMaxSize);
+        service.initialize();
+        
+        // the service never writes into the parameters, they can be shared by all invocations
+        params = ImmutableMap.<String, Object>of(
+            "name", "John \"Doe\" & Sons",
+            "email", "john@example.com",
+            "paragraphs", paragraphs,
+            "invoice", file.getAbsolutePath()
+        );
+    }
+    
+    @TearDown
+    public void tearDown() {
+        service.dispose();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+    
+    @Benchmark
+    public MimeMessage sendMessage() throws Exception {
+        return service.sendMessage("order.vm", null, params);
+    }
+    
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.mail.templating.velocity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataHandler;
+
+import de.cosmocode.palava.mail.templating.TemplateException;
+
+/**
+ * A {@link DataHandler} which writes the body of a {@link ParsedMailTemplate}
+ * directly into the stream javamail provides.
+ *
+ * @author Tobias Sarnowski
+ */
+final class BodyDataHandler extends DataHandler {
+
+    private final ParsedMailTemplate template;
+
+    BodyDataHandler(ParsedMailTemplate template, String contentType) {
+        super(template, contentType);
+        this.template = template;
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        try {
+            template.writeBody(os);
+        } catch (TemplateException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        // only used by readers of the part, sending relies on writeTo
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeTo(buffer);
+        return new ByteArrayInputStream(buffer.toByteArray());
+    }
+
+    @Override
+    public Object getContent() throws IOException {
+        return template.getBody();
+    }
+
+}
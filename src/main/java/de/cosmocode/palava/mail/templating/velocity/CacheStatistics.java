@@ -0,0 +1,40 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.mail.templating.velocity;
+
+/**
+ * Hit and miss counters of a cache, published by {@link PipelineStatistics}.
+ *
+ * @author Tobias Sarnowski
+ */
+public interface CacheStatistics {
+
+    /**
+     * Provides the number of lookups served from the cache.
+     * 
+     * @return the number of hits
+     */
+    long getHits();
+    
+    /**
+     * Provides the number of lookups which had to load the value.
+     * 
+     * @return the number of misses
+     */
+    long getMisses();
+    
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.mail.templating.velocity;
+
+import java.util.Map;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.Velocity;
+import org.apache.velocity.exception.ResourceNotFoundException;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.mail.templating.LocalizedMailTemplate;
+import de.cosmocode.palava.mail.templating.MailAttachmentTemplate;
+import de.cosmocode.palava.mail.templating.TemplateException;
+
+/**
+ * The parsed velocity templates of all parts of one {@link de.cosmocode.palava.mail.templating.LocalizedMailTemplate},
+ * indexed by their resource name. Parts without references and directives are not parsed,
+ * they are kept as literal text instead.
+ *
+ * @author Tobias Sarnowski
+ */
+final class CompiledTemplate {
+
+    private final Map<String, Template> templates;
+
+    private final Map<String, String> literals;
+
+    CompiledTemplate(Map<String, Template> templates, Map<String, String> literals) {
+        this.templates = ImmutableMap.copyOf(templates);
+        this.literals = ImmutableMap.copyOf(literals);
+    }
+
+    /**
+     * Loads all parts of the given template from the velocity singleton, where they
+     * have to be registered under the given prefix. Missing parts fail on first use,
+     * like they did when merging through the singleton directly.
+     *
+     * @param prefix the resource name prefix
+     * @param template the template
+     * @return the parsed parts
+     * @throws TemplateException if a part could not be parsed
+     */
+    static CompiledTemplate fromSingleton(String prefix, LocalizedMailTemplate template) throws TemplateException {
+        final Map<String, Template> templates = Maps.newHashMap();
+        load(templates, prefix + VelocityTemplateEngine.K_SUBJECT);
+        load(templates, prefix + VelocityTemplateEngine.K_BODY);
+        for (String snippet : template.getSnippets().keySet()) {
+            load(templates, prefix + VelocityTemplateEngine.K_SNIPPETS + "/" + snippet);
+        }
+        loadAll(templates, prefix, template.getEmbedded());
+        // attachments are parsed from the embedded resources as well
+        loadAll(templates, prefix, template.getAttachments());
+        return new CompiledTemplate(templates, ImmutableMap.<String, String>of());
+    }
+
+    private static void loadAll(Map<String, Template> templates, String prefix, 
+        Iterable<MailAttachmentTemplate> parts) throws TemplateException {
+        for (MailAttachmentTemplate part : parts) {
+            final String name = prefix + VelocityTemplateEngine.K_EMBEDDED + "/" + part.getName();
+            load(templates, name);
+            for (String key : part.getConfiguration().keySet()) {
+                load(templates, name + "/" + key);
+            }
+        }
+    }
+
+    private static void load(Map<String, Template> templates, String name) throws TemplateException {
+        if (templates.containsKey(name)) return;
+        /*CHECKSTYLE:OFF*/
+        try {
+            templates.put(name, Velocity.getTemplate(name, VelocityTemplateEngine.ENCODING));
+        } catch (ResourceNotFoundException e) {
+            // fails on first use, see get(String)
+            return;
+        } catch (Exception e) {
+            throw new TemplateException(e);
+        }
+        /*CHECKSTYLE:ON*/
+    }
+
+    /**
+     * Checks whether the given source can be used as is, because it contains neither
+     * references nor directives.
+     *
+     * @param source the template source
+     * @return true if merging the source would return it unchanged
+     */
+    static boolean isLiteral(String source) {
+        return source != null && source.indexOf('$') == -1 && source.indexOf('#') == -1;
+    }
+
+    /**
+     * Provides the text of the given resource if it is a literal.
+     *
+     * @param name the resource name
+     * @return the literal text or null if the resource has to be merged
+     */
+    String literal(String name) {
+        return literals.get(name);
+    }
+
+    /**
+     * Provides the parsed template for the given resource name.
+     *
+     * @param name the resource name
+     * @return the parsed template
+     * @throws TemplateException if no template has been registered under the given name
+     */
+    Template get(String name) throws TemplateException {
+        final Template template = templates.get(name);
+        if (template == null) {
+            throw new TemplateException(new ResourceNotFoundException("Unable to find resource '" + name + "'"));
+        }
+        return template;
+    }
+
+}
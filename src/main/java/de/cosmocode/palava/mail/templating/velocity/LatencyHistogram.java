@@ -0,0 +1,87 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.mail.templating.velocity;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with power of two microsecond buckets.
+ *
+ * @author Tobias Sarnowski
+ */
+final class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+    
+    // bucket i counts latencies up to 2^i microseconds
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    
+    private final AtomicLong count = new AtomicLong();
+    
+    private final AtomicLong sum = new AtomicLong();
+    
+    private final AtomicLong max = new AtomicLong();
+    
+    void record(long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        final int bucket = micros <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        
+        long current;
+        while ((current = max.get()) < micros && !max.compareAndSet(current, micros)) {
+            continue;
+        }
+    }
+    
+    long getCount() {
+        return count.get();
+    }
+    
+    double getMean() {
+        final long n = count.get();
+        return n == 0 ? 0d : (double) sum.get() / n;
+    }
+    
+    long getMax() {
+        return max.get();
+    }
+    
+    /**
+     * Provides the upper bound of the bucket containing the given percentile.
+     * 
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in microseconds
+     */
+    long getPercentile(double percentile) {
+        final long n = count.get();
+        if (n == 0) return 0L;
+        final long rank = (long) Math.ceil(n * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return max.get();
+    }
+    
+}
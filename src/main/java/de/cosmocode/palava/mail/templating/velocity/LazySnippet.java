@@ -0,0 +1,159 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.mail.templating.velocity;
+
+import de.cosmocode.palava.mail.templating.TemplateException;
+
+/**
+ * A snippet which is put into the velocity context and rendered the first
+ * time it is referenced. The result is memoized for the rest of the render.
+ * Templates used to get snippets as strings, so the common {@link String}
+ * methods are delegated to the rendered snippet, e.g. {@code $footer.trim()}.
+ *
+ * @author Tobias Sarnowski
+ */
+final class LazySnippet implements CharSequence {
+
+    private final ParsedMailTemplate owner;
+    private final String key;
+
+    private String rendered;
+    private boolean rendering;
+
+    LazySnippet(ParsedMailTemplate owner, String key) {
+        this.owner = owner;
+        this.key = key;
+    }
+
+    /**
+     * Renders this snippet, unless it has already been rendered.
+     *
+     * @return the rendered snippet
+     * @throws TemplateException if rendering failed
+     */
+    String render() throws TemplateException {
+        if (rendered == null) {
+            if (rendering) {
+                throw new IllegalStateException("Snippet " + key + " references itself");
+            }
+            rendering = true;
+            try {
+                rendered = owner.renderSnippet(key);
+            } finally {
+                rendering = false;
+            }
+        }
+        return rendered;
+    }
+
+    @Override
+    public int length() {
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    public boolean isEmpty() {
+        return toString().isEmpty();
+    }
+
+    public String trim() {
+        return toString().trim();
+    }
+
+    public String substring(int start) {
+        return toString().substring(start);
+    }
+
+    public String substring(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    public int indexOf(String value) {
+        return toString().indexOf(value);
+    }
+
+    public boolean contains(CharSequence value) {
+        return toString().contains(value);
+    }
+
+    public boolean startsWith(String prefix) {
+        return toString().startsWith(prefix);
+    }
+
+    public boolean endsWith(String suffix) {
+        return toString().endsWith(suffix);
+    }
+
+    public boolean equalsIgnoreCase(String other) {
+        return toString().equalsIgnoreCase(other);
+    }
+
+    public String toUpperCase() {
+        return toString().toUpperCase();
+    }
+
+    public String toLowerCase() {
+        return toString().toLowerCase();
+    }
+
+    public String replace(CharSequence target, CharSequence replacement) {
+        return toString().replace(target, replacement);
+    }
+
+    /**
+     * Compares the rendered snippet with the given object, which allows
+     * {@code #if($snippet.equals("..."))} like it did with plain strings.
+     * Note that {@link String#equals(Object)} is not symmetric to this.
+     */
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        } else if (that instanceof LazySnippet || that instanceof String) {
+            return toString().equals(that.toString());
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    /**
+     * Called by velocity when this snippet is referenced inside a template.
+     */
+    @Override
+    public String toString() {
+        try {
+            return render();
+        } catch (TemplateException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -16,12 +16,18 @@
 
 package de.cosmocode.palava.mail.templating.velocity;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Map;
 import java.util.Set;
 
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.Velocity;
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -40,30 +46,57 @@ import de.cosmocode.palava.mail.templating.TemplateException;
 public class ParsedMailTemplate implements LocalizedMailTemplate {
 
     private String prefix;
+    private CompiledTemplate compiled;
     private LocalizedMailTemplate template;
     private VelocityContext context;
+    private boolean streaming;
+    private PipelineStatistics statistics;
 
     private String subject;
     private String body;
     private Set<MailAttachmentTemplate> embedded;
     private Set<MailAttachmentTemplate> attachments;
 
+    private int renderedSnippets;
+
+    /**
+     * Renders the given template using the parts registered under prefix in the
+     * string resource repository of the velocity singleton.
+     *
+     * @deprecated use {@link VelocityTemplateEngine#generate(LocalizedMailTemplate, Map)}, which
+     *             compiles and caches the parts on an engine of its own
+     * @param prefix the resource name prefix, e.g. "/name/"
+     * @param template the template
+     * @param context the variables
+     * @throws TemplateException if rendering failed
+     */
+    @Deprecated
     public ParsedMailTemplate(String prefix, LocalizedMailTemplate template, VelocityContext context) 
         throws TemplateException {
+        this(prefix, CompiledTemplate.fromSingleton(prefix, template), template, context, false, 
+            new PipelineStatistics());
+    }
+
+    ParsedMailTemplate(String prefix, CompiledTemplate compiled, LocalizedMailTemplate template, 
+        VelocityContext context, boolean streaming, PipelineStatistics statistics) throws TemplateException {
         
         this.prefix = prefix;
+        this.compiled = compiled;
         this.template = template;
         this.context = context;
+        this.streaming = streaming;
+        this.statistics = statistics;
 
-        // prepare snippets
-        for (Map.Entry<String, String> snippetEntry : template.getSnippets().entrySet()) {
-            final String snippet = parse(VelocityTemplateEngine.K_SNIPPETS + "/" + snippetEntry.getKey());
-            context.put(snippetEntry.getKey(), snippet);
+        // prepare snippets, they are rendered on first reference
+        for (String snippet : template.getSnippets().keySet()) {
+            context.put(snippet, new LazySnippet(this, snippet));
         }
 
         // parse actual things
         subject = parse(VelocityTemplateEngine.K_SUBJECT);
-        body = parse(VelocityTemplateEngine.K_BODY);
+        if (!streaming) {
+            body = parse(VelocityTemplateEngine.K_BODY);
+        }
 
         embedded = Sets.newHashSet();
         for (final MailAttachmentTemplate e : template.getEmbedded()) {
@@ -127,17 +160,90 @@ public class ParsedMailTemplate implements LocalizedMailTemplate {
     }
 
     private String parse(String key) throws TemplateException {
+        final String literal = compiled.literal(prefix + key);
+        if (literal != null) {
+            statistics.avoided(template.getName());
+            return literal;
+        }
         final StringWriter sw = new StringWriter();
         try {
-            Velocity.mergeTemplate(prefix + key, VelocityTemplateEngine.ENCODING, context, sw);
+            compiled.get(prefix + key).merge(context, sw);
             return sw.toString();
         /* CHECKSTYLE:OFF */
+        } catch (TemplateException e) {
+            throw e;
         } catch (Exception e) {
         /* CHECKSTYLE:ON */
             throw new TemplateException(e);
         }
     }
 
+    /**
+     * Writes the body of this template to the given stream. In streaming mode the
+     * body is merged directly into the stream, without buffering the whole output.
+     *
+     * @param out the target stream, which will not be closed
+     * @throws TemplateException if rendering failed
+     * @throws IOException if writing to the stream failed
+     */
+    public void writeBody(OutputStream out) throws TemplateException, IOException {
+        final Writer writer = new OutputStreamWriter(out, VelocityTemplateEngine.ENCODING);
+        final String literal = compiled.literal(prefix + VelocityTemplateEngine.K_BODY);
+        if (streaming && literal != null) {
+            statistics.avoided(template.getName());
+            writer.write(literal);
+        } else if (streaming) {
+            try {
+                compiled.get(prefix + VelocityTemplateEngine.K_BODY).merge(context, writer);
+            /* CHECKSTYLE:OFF */
+            } catch (TemplateException e) {
+                throw e;
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+            /* CHECKSTYLE:ON */
+                throw new TemplateException(e);
+            }
+        } else {
+            writer.write(body);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Creates a mime part carrying the body of this template. The body is
+     * written using {@link #writeBody(OutputStream)} when the part is written,
+     * which, in streaming mode, renders the body straight into the message stream.
+     *
+     * @param subtype the text subtype, e.g. "html" or "plain"
+     * @return a new body part
+     * @throws MessagingException if creating the part failed
+     */
+    public MimeBodyPart createBodyPart(String subtype) throws MessagingException {
+        final String contentType = "text/" + subtype + "; charset=" + VelocityTemplateEngine.ENCODING;
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new BodyDataHandler(this, contentType));
+        part.setHeader("Content-Type", contentType);
+        // an explicit encoding prevents javamail from rendering the body just to pick one
+        part.setHeader("Content-Transfer-Encoding", "quoted-printable");
+        return part;
+    }
+
+    String renderSnippet(String name) throws TemplateException {
+        renderedSnippets++;
+        return parse(VelocityTemplateEngine.K_SNIPPETS + "/" + name);
+    }
+
+    /**
+     * Provides the number of snippets which were actually referenced and
+     * therefore rendered while parsing this template.
+     *
+     * @return the number of rendered snippets
+     */
+    public int getRenderedSnippets() {
+        return renderedSnippets;
+    }
+
     @Override
     public String getName() {
         return template.getName();
@@ -150,7 +256,15 @@ public class ParsedMailTemplate implements LocalizedMailTemplate {
 
     @Override
     public String getBody() {
-        return body;
+        if (streaming) {
+            try {
+                return parse(VelocityTemplateEngine.K_BODY);
+            } catch (TemplateException e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            return body;
+        }
     }
 
     @Override
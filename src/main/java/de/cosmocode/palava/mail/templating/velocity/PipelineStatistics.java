@@ -0,0 +1,246 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.mail.templating.velocity;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Per stage latencies, error counts and cache hit rates of the mail pipeline.
+ * Recording is disabled by default, in which case {@link #start()} and
+ * {@link #record(Stage, String, long)} do nothing but a volatile read.
+ *
+ * @author Tobias Sarnowski
+ */
+public final class PipelineStatistics implements PipelineStatisticsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PipelineStatistics.class);
+    
+    private static final long DISABLED = 0L;
+    
+    private volatile boolean enabled;
+    
+    private volatile ConcurrentMap<String, LatencyHistogram> latencies = Maps.newConcurrentMap();
+    
+    private volatile AtomicLongArray errors = new AtomicLongArray(Stage.values().length);
+    
+    private volatile ConcurrentMap<String, AtomicLong> avoided = Maps.newConcurrentMap();
+    
+    private final ConcurrentMap<String, CacheStatistics> caches = Maps.newConcurrentMap();
+    
+    private ObjectName name;
+    
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    /**
+     * Starts timing a stage.
+     * 
+     * @return an opaque start value to be passed to {@link #record(Stage, String, long)}
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : DISABLED;
+    }
+    
+    /**
+     * Records the latency of a stage.
+     * 
+     * @param stage the finished stage
+     * @param key the template (or file) the stage processed
+     * @param start the value returned by {@link #start()} or a previous call to this method
+     * @return the start value for the next stage
+     */
+    public long record(Stage stage, String key, long start) {
+        if (start == DISABLED) return DISABLED;
+        final long now = System.nanoTime();
+        histogramOf(stage.name() + " " + key).record(now - start);
+        return now;
+    }
+    
+    private LatencyHistogram histogramOf(String key) {
+        final LatencyHistogram histogram = latencies.get(key);
+        if (histogram == null) {
+            final LatencyHistogram created = new LatencyHistogram();
+            final LatencyHistogram previous = latencies.putIfAbsent(key, created);
+            return previous == null ? created : previous;
+        } else {
+            return histogram;
+        }
+    }
+    
+    /**
+     * Counts an error in the given stage.
+     * 
+     * @param stage the failed stage
+     */
+    public void failed(Stage stage) {
+        if (enabled) {
+            errors.incrementAndGet(stage.ordinal());
+        }
+    }
+    
+    /**
+     * Counts a merge which has been skipped because the merged part is a literal.
+     * 
+     * @param key the template the part belongs to
+     */
+    public void avoided(String key) {
+        if (!enabled) return;
+        final AtomicLong counter = avoided.get(key);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            final AtomicLong previous = avoided.putIfAbsent(key, created);
+            (previous == null ? created : previous).incrementAndGet();
+        } else {
+            counter.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Publishes the hit rate of the given cache.
+     * 
+     * @param cacheName the cache name
+     * @param cache the cache counters
+     */
+    public void register(String cacheName, CacheStatistics cache) {
+        caches.put(Preconditions.checkNotNull(cacheName, "CacheName"), Preconditions.checkNotNull(cache, "Cache"));
+    }
+    
+    @Override
+    public Map<String, Long> getCounts() {
+        final SortedMap<String, Long> counts = Maps.newTreeMap();
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().getCount());
+        }
+        return counts;
+    }
+    
+    @Override
+    public Map<String, Double> getMeanLatencies() {
+        final SortedMap<String, Double> means = Maps.newTreeMap();
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            means.put(entry.getKey(), entry.getValue().getMean());
+        }
+        return means;
+    }
+    
+    @Override
+    public Map<String, Long> getP99Latencies() {
+        final SortedMap<String, Long> percentiles = Maps.newTreeMap();
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            percentiles.put(entry.getKey(), entry.getValue().getPercentile(99d));
+        }
+        return percentiles;
+    }
+    
+    @Override
+    public Map<String, Long> getMaxLatencies() {
+        final SortedMap<String, Long> maxima = Maps.newTreeMap();
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            maxima.put(entry.getKey(), entry.getValue().getMax());
+        }
+        return maxima;
+    }
+    
+    @Override
+    public Map<String, Long> getErrors() {
+        final SortedMap<String, Long> counts = Maps.newTreeMap();
+        final AtomicLongArray current = errors;
+        for (Stage stage : Stage.values()) {
+            counts.put(stage.name(), current.get(stage.ordinal()));
+        }
+        return counts;
+    }
+    
+    @Override
+    public Map<String, Double> getCacheHitRates() {
+        final SortedMap<String, Double> rates = Maps.newTreeMap();
+        for (Map.Entry<String, CacheStatistics> entry : caches.entrySet()) {
+            final long hits = entry.getValue().getHits();
+            final long total = hits + entry.getValue().getMisses();
+            rates.put(entry.getKey(), total == 0 ? 0d : (double) hits / total);
+        }
+        return rates;
+    }
+    
+    @Override
+    public Map<String, Long> getAvoidedMerges() {
+        final SortedMap<String, Long> counts = Maps.newTreeMap();
+        for (Map.Entry<String, AtomicLong> entry : avoided.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+    
+    @Override
+    public void reset() {
+        latencies = Maps.newConcurrentMap();
+        avoided = Maps.newConcurrentMap();
+        errors = new AtomicLongArray(Stage.values().length);
+    }
+    
+    /**
+     * Registers these statistics at the platform mbean server. Failures are logged.
+     * 
+     * @param objectName the object name, e.g. "de.cosmocode.palava.mail:type=VelocityTemplateEngine"
+     */
+    public synchronized void registerMBean(String objectName) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName candidate = new ObjectName(objectName);
+            server.registerMBean(this, candidate);
+            name = candidate;
+        } catch (JMException e) {
+            LOG.warn("Unable to register pipeline statistics as " + objectName, e);
+        }
+    }
+    
+    /**
+     * Removes these statistics from the platform mbean server, if registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            LOG.warn("Unable to unregister pipeline statistics " + name, e);
+        }
+        name = null;
+    }
+    
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.mail.templating.velocity;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link PipelineStatistics}. Latencies are
+ * keyed by stage and template, e.g. "MERGE de/welcome.vm", and given in microseconds.
+ *
+ * @author Tobias Sarnowski
+ */
+public interface PipelineStatisticsMXBean {
+
+    boolean isEnabled();
+    
+    void setEnabled(boolean enabled);
+    
+    Map<String, Long> getCounts();
+    
+    Map<String, Double> getMeanLatencies();
+    
+    Map<String, Long> getP99Latencies();
+    
+    Map<String, Long> getMaxLatencies();
+    
+    Map<String, Long> getErrors();
+    
+    Map<String, Double> getCacheHitRates();
+    
+    /**
+     * Provides the number of merges skipped per template, because the merged part
+     * contained neither references nor directives.
+     * 
+     * @return the number of avoided merges by template name
+     */
+    Map<String, Long> getAvoidedMerges();
+    
+    /**
+     * Discards all recorded latencies, errors and avoided merges.
+     */
+    void reset();
+    
+}
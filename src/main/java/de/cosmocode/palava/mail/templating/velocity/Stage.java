@@ -0,0 +1,72 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.mail.templating.velocity;
+
+/**
+ * The stages of the mail pipeline tracked by {@link PipelineStatistics}.
+ *
+ * @author Tobias Sarnowski
+ */
+public enum Stage {
+
+    /**
+     * Looking up a template, either from disk or from a cache.
+     */
+    LOOKUP,
+    
+    /**
+     * Registering and parsing template sources.
+     */
+    COMPILE,
+    
+    /**
+     * Merging a template with its context.
+     */
+    MERGE,
+    
+    /**
+     * Parsing the rendered envelope.
+     */
+    PARSE,
+    
+    /**
+     * Building the email from the envelope.
+     */
+    BUILD,
+    
+    /**
+     * Loading embedded and attached files.
+     */
+    ATTACHMENTS,
+    
+    /**
+     * Assembling the mime message, including attachment encoding.
+     */
+    MIME,
+    
+    /**
+     * Delivering the message to the relay.
+     */
+    SEND,
+    
+    /**
+     * Delivering the message to a single one of multiple relays, keyed by relay.
+     * A message failing over is counted once for every relay it has been tried on.
+     */
+    RELAY;
+    
+}
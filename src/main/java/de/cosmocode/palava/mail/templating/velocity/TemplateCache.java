@@ -0,0 +1,94 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.mail.templating.velocity;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A size bounded, least recently used cache of {@link CompiledTemplate}s.
+ * Entries are keyed by the complete set of template sources (resource name =&gt; source),
+ * which acts as fingerprint of the template name and its content.
+ *
+ * @author Tobias Sarnowski
+ */
+final class TemplateCache implements CacheStatistics {
+
+    private final Map<Map<String, String>, CompiledTemplate> cache;
+
+    private long hits;
+
+    private long misses;
+
+    TemplateCache(final int maximumSize) {
+        Preconditions.checkArgument(maximumSize >= 0, "MaximumSize must not be negative");
+        this.cache = new LinkedHashMap<Map<String, String>, CompiledTemplate>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 6512305364297312465L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Map<String, String>, CompiledTemplate> eldest) {
+                return size() > maximumSize;
+            }
+
+        };
+    }
+
+    /**
+     * Looks up the compiled version of the given sources.
+     *
+     * @param sources the template sources
+     * @return the compiled template or null if there is none cached
+     */
+    synchronized CompiledTemplate get(Map<String, String> sources) {
+        final CompiledTemplate compiled = cache.get(sources);
+        if (compiled == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return compiled;
+    }
+
+    /**
+     * Caches a compiled template, evicting the least recently used entry if
+     * the maximum size has been reached.
+     *
+     * @param sources the template sources
+     * @param compiled the compiled version
+     */
+    synchronized void put(Map<String, String> sources, CompiledTemplate compiled) {
+        cache.put(sources, compiled);
+    }
+
+    synchronized int size() {
+        return cache.size();
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+}
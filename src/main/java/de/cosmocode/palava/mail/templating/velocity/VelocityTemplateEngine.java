@@ -16,15 +16,31 @@
 
 package de.cosmocode.palava.mail.templating.velocity;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.Velocity;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.Context;
 import org.apache.velocity.runtime.resource.loader.StringResourceLoader;
 import org.apache.velocity.runtime.resource.util.StringResourceRepository;
 import org.apache.velocity.runtime.resource.util.StringResourceRepositoryImpl;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
 import de.cosmocode.palava.mail.templating.LocalizedMailTemplate;
 import de.cosmocode.palava.mail.templating.MailAttachmentTemplate;
 import de.cosmocode.palava.mail.templating.TemplateEngine;
@@ -39,13 +55,74 @@ public final class VelocityTemplateEngine implements TemplateEngine {
 
     public static final String ENCODING = "UTF-8";
 
+    public static final int DEFAULT_CACHE_SIZE = 128;
+
     protected static final String K_SUBJECT = "subject";
     protected static final String K_BODY = "body";
     protected static final String K_SNIPPETS = "snippets";
     protected static final String K_EMBEDDED = "embedded";
     protected static final String K_ATTACHMENTS = "attachments";
 
+    private static final String REPOSITORY_NAME = VelocityTemplateEngine.class.getName();
+
+    private final TemplateCache cache;
+
+    private final PipelineStatistics statistics = new PipelineStatistics();
+
+    private final VelocityEngine engine = new VelocityEngine();
+
+    private final StringResourceRepository repository = new StringResourceRepositoryImpl();
+
+    private final Context globals;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private ThreadPoolExecutor pool;
+
     public VelocityTemplateEngine() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a new engine which keeps at most cacheSize parsed templates.
+     *
+     * @param cacheSize the maximum number of cached templates
+     */
+    public VelocityTemplateEngine(int cacheSize) {
+        this(cacheSize, new Properties());
+    }
+
+    /**
+     * Creates a new engine which keeps at most cacheSize parsed templates and
+     * runs on its own {@link VelocityEngine}, configured using the default string
+     * resource loader setup overridden by the given configuration. Every engine
+     * owns a separate resource repository, so independent instances never share
+     * templates or caches.
+     *
+     * @param cacheSize the maximum number of cached templates
+     * @param configuration additional velocity configuration
+     */
+    public VelocityTemplateEngine(int cacheSize, Properties configuration) {
+        this(cacheSize, configuration, ImmutableMap.<String, Object>of());
+    }
+
+    /**
+     * Creates a new engine like {@link #VelocityTemplateEngine(int, Properties)} which
+     * additionally provides the given globals to every template. Globals are copied
+     * once into an immutable context, which is chained behind the variables of every
+     * generated template. Variables take precedence over globals of the same name.
+     *
+     * @param cacheSize the maximum number of cached templates
+     * @param configuration additional velocity configuration
+     * @param globals variables available to all templates
+     */
+    public VelocityTemplateEngine(int cacheSize, Properties configuration, Map<String, ?> globals) {
+        Preconditions.checkNotNull(configuration, "Configuration");
+        Preconditions.checkNotNull(globals, "Globals");
+        this.cache = new TemplateCache(cacheSize);
+        this.globals = new VelocityContext(ImmutableMap.copyOf(globals));
+        statistics.register("templates", cache);
+
         final Properties config = new Properties();
 
         // see http://velocity.apache.org/engine/devel/apidocs/org/apache/velocity/
@@ -54,10 +131,15 @@ public final class VelocityTemplateEngine implements TemplateEngine {
         config.put("string.resource.loader.description", "Velocity StringResource loader");
         config.put("string.resource.loader.class", StringResourceLoader.class.getName());
         config.put("string.resource.loader.repository.class", StringResourceRepositoryImpl.class.getName());
-        config.put("string.resource.loader.repository.name", VelocityTemplateEngine.class.getName());
+        config.put("string.resource.loader.repository.name", REPOSITORY_NAME);
+        config.put("string.resource.loader.repository.static", "false");
+        config.putAll(configuration);
+
+        // the loader picks up the repository from the application attributes of this engine
+        engine.setApplicationAttribute(REPOSITORY_NAME, repository);
 
         try {
-            Velocity.init(config);
+            engine.init(config);
         /* CHECKSTYLE:OFF */
         } catch (Exception e) {
         /* CHECKSTYLE:ON */
@@ -68,42 +150,233 @@ public final class VelocityTemplateEngine implements TemplateEngine {
     @Override
     public LocalizedMailTemplate generate(LocalizedMailTemplate template, Map<String, ? extends Object> variables) 
         throws TemplateException {
+        return generate(template, variables, false);
+    }
+
+    /**
+     * Generates the given template in streaming mode. The body is not rendered
+     * up front, but merged directly into the target stream on every call to
+     * {@link ParsedMailTemplate#writeBody(java.io.OutputStream)} or when the
+     * part created by {@link ParsedMailTemplate#createBodyPart(String)} is written.
+     *
+     * @param template the template
+     * @param variables the template variables
+     * @return the parsed template with a deferred body
+     * @throws TemplateException if parsing any other part failed
+     */
+    public ParsedMailTemplate generateStreaming(LocalizedMailTemplate template, 
+        Map<String, ? extends Object> variables) throws TemplateException {
+        return generate(template, variables, true);
+    }
+
+    /**
+     * Generates all given localizations of one template concurrently, using at most
+     * {@link #setParallelism(int)} threads. The variables are shared read-only by all
+     * localizations and must not be modified until this method returns.
+     *
+     * @param <L> the locale type
+     * @param templates the localizations of one template, indexed by locale
+     * @param variables the template variables
+     * @return the parsed templates, indexed by locale, in the iteration order of templates
+     * @throws TemplateException if generating any of the localizations failed
+     */
+    public <L> Map<L, ParsedMailTemplate> generateAll(Map<L, ? extends LocalizedMailTemplate> templates,
+        Map<String, ? extends Object> variables) throws TemplateException {
+        Preconditions.checkNotNull(templates, "Templates");
+        Preconditions.checkNotNull(variables, "Variables");
+
+        // wrapped, not copied, nothing writes into the variables of the caller
+        final Context shared = new VelocityContext(Collections.unmodifiableMap(variables), globals);
+        final ExecutorService pool = pool();
+
+        final Map<L, Future<ParsedMailTemplate>> futures = Maps.newLinkedHashMap();
+        for (final Map.Entry<L, ? extends LocalizedMailTemplate> entry : templates.entrySet()) {
+            futures.put(entry.getKey(), pool.submit(new Callable<ParsedMailTemplate>() {
+
+                @Override
+                public ParsedMailTemplate call() throws TemplateException {
+                    // snippets are put per localization, the shared variables stay untouched
+                    return generate(entry.getValue(), new VelocityContext(Maps.newHashMap(), shared), false);
+                }
+
+            }));
+        }
+
+        final Map<L, ParsedMailTemplate> parsed = Maps.newLinkedHashMap();
+        try {
+            for (Map.Entry<L, Future<ParsedMailTemplate>> entry : futures.entrySet()) {
+                parsed.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (ExecutionException e) {
+            cancel(futures.values());
+            if (e.getCause() instanceof TemplateException) {
+                throw (TemplateException) e.getCause();
+            } else {
+                throw new TemplateException(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            cancel(futures.values());
+            Thread.currentThread().interrupt();
+            throw new TemplateException(e);
+        }
+        return parsed;
+    }
+
+    private void cancel(Iterable<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Sets the maximum number of threads used by {@link #generateAll(Map, Map)}.
+     * Defaults to the number of available processors. Idle threads are released
+     * after a minute.
+     *
+     * @param parallelism the maximum number of threads
+     */
+    public synchronized void setParallelism(int parallelism) {
+        Preconditions.checkArgument(parallelism > 0, "Parallelism must be positive");
+        this.parallelism = parallelism;
+        if (pool != null) {
+            pool.setMaximumPoolSize(Math.max(parallelism, pool.getCorePoolSize()));
+            pool.setCorePoolSize(parallelism);
+            pool.setMaximumPoolSize(parallelism);
+        }
+    }
+
+    private synchronized ExecutorService pool() {
+        if (pool == null) {
+            pool = new ThreadPoolExecutor(parallelism, parallelism, 1L, TimeUnit.MINUTES, 
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "velocity-template-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+            // the engine has no lifecycle, so the pool must not keep threads alive
+            pool.allowCoreThreadTimeOut(true);
+        }
+        return pool;
+    }
+
+    private ParsedMailTemplate generate(LocalizedMailTemplate template, Map<String, ? extends Object> variables,
+        boolean streaming) throws TemplateException {
+        // only per render values (snippets, #set) are allocated, the variables are wrapped
+        final Context shared = new VelocityContext(Collections.unmodifiableMap(variables), globals);
+        return generate(template, new VelocityContext(Maps.newHashMap(), shared), streaming);
+    }
+
+    private ParsedMailTemplate generate(LocalizedMailTemplate template, VelocityContext context,
+        boolean streaming) throws TemplateException {
         
         // generate template
+        long start = statistics.start();
         final String name = "/" + template.getName() + "/";
-        final StringResourceRepository repo = StringResourceLoader.getRepository(getClass().getName());
+        final Map<String, String> sources = sourcesOf(name, template);
 
-        repo.putStringResource(name + K_SUBJECT, template.getSubject());
-        repo.putStringResource(name + K_BODY, template.getBody());
+        CompiledTemplate compiled = cache.get(sources);
+        start = statistics.record(Stage.LOOKUP, template.getName(), start);
+        if (compiled == null) {
+            try {
+                compiled = compile(sources);
+            } catch (TemplateException e) {
+                statistics.failed(Stage.COMPILE);
+                throw e;
+            }
+            cache.put(sources, compiled);
+            start = statistics.record(Stage.COMPILE, template.getName(), start);
+        }
+
+        final ParsedMailTemplate parsed;
+        try {
+            parsed = new ParsedMailTemplate(name, compiled, template, context, streaming, statistics);
+        } catch (TemplateException e) {
+            statistics.failed(Stage.MERGE);
+            throw e;
+        }
+        statistics.record(Stage.MERGE, template.getName(), start);
+        return parsed;
+    }
+
+    /**
+     * Provides the statistics of this engine, which are disabled by default.
+     * Use {@link PipelineStatistics#registerMBean(String)} to publish them.
+     *
+     * @return the statistics
+     */
+    public PipelineStatistics getStatistics() {
+        return statistics;
+    }
+
+    private Map<String, String> sourcesOf(String name, LocalizedMailTemplate template) {
+        final Map<String, String> sources = Maps.newHashMap();
+        sources.put(name + K_SUBJECT, template.getSubject());
+        sources.put(name + K_BODY, template.getBody());
         for (Map.Entry<String, String> snippet : template.getSnippets().entrySet()) {
-            repo.putStringResource(name + K_SNIPPETS + "/" + snippet.getKey(), snippet.getValue());
+            sources.put(name + K_SNIPPETS + "/" + snippet.getKey(), snippet.getValue());
         }
         for (MailAttachmentTemplate embedded : template.getEmbedded()) {
-            repo.putStringResource(name + K_EMBEDDED + "/" + embedded.getName(), embedded.getName());
+            sources.put(name + K_EMBEDDED + "/" + embedded.getName(), embedded.getName());
             for (Map.Entry<String, String> config : embedded.getConfiguration().entrySet()) {
-                repo.putStringResource(
+                sources.put(
                     name + K_EMBEDDED + "/" + embedded.getName() + "/" + config.getKey(), 
                     config.getValue()
                 );
             }
         }
         for (MailAttachmentTemplate attachment : template.getEmbedded()) {
-            repo.putStringResource(name + K_ATTACHMENTS + "/" + attachment.getName(), attachment.getName());
+            sources.put(name + K_ATTACHMENTS + "/" + attachment.getName(), attachment.getName());
             for (Map.Entry<String, String> config : attachment.getConfiguration().entrySet()) {
-                repo.putStringResource(
+                sources.put(
                     name + K_ATTACHMENTS + "/" + attachment.getName() + "/" + config.getKey(), 
                     config.getValue()
                 );
             }
         }
+        return sources;
+    }
+
+    /**
+     * Registers the given sources in the string repository and parses each of them.
+     * Registration and parsing happen atomically, because two versions of the same
+     * template share their resource names.
+     */
+    private CompiledTemplate compile(Map<String, String> sources) throws TemplateException {
+        final Map<String, Template> templates = Maps.newHashMap();
+        final Map<String, String> literals = Maps.newHashMap();
+        final Map<String, String> dynamic = Maps.newHashMap();
+
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            if (CompiledTemplate.isLiteral(source.getValue())) {
+                literals.put(source.getKey(), source.getValue());
+            } else {
+                dynamic.put(source.getKey(), source.getValue());
+            }
+        }
 
-        // configure variables
-        final VelocityContext context = new VelocityContext();
-        for (Map.Entry<String, ? extends Object> entry : variables.entrySet()) {
-            context.put(entry.getKey(), entry.getValue());
+        synchronized (repository) {
+            for (Map.Entry<String, String> source : dynamic.entrySet()) {
+                repository.putStringResource(source.getKey(), source.getValue());
+            }
+            try {
+                for (String resource : dynamic.keySet()) {
+                    templates.put(resource, engine.getTemplate(resource, ENCODING));
+                }
+            /* CHECKSTYLE:OFF */
+            } catch (Exception e) {
+            /* CHECKSTYLE:ON */
+                throw new TemplateException(e);
+            }
         }
 
-        return new ParsedMailTemplate(name, template, context);
+        return new CompiledTemplate(templates, literals);
     }
     
 }
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.mail.EmailException;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Caches the parsed recipient addresses of one template. Every field remembers
+ * the addresses of the last text it has seen, so fields which render to the same
+ * text every time, like a fixed reply-to or compliance bcc, are parsed and
+ * validated only once. Fields with per message content are parsed every time.
+ *
+ * <p>
+ *   The cached addresses are shared by all messages of the template and must not be modified.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class AddressCache {
+
+    private static final String SEPARATOR = ";";
+    
+    /**
+     * The cached address fields of an envelope.
+     *
+     * @author Willi Schoenborn
+     */
+    enum Field {
+        
+        TO, CC, BCC, REPLY_TO;
+        
+    }
+    
+    private final AtomicReferenceArray<Parsed> fields = new AtomicReferenceArray<Parsed>(Field.values().length);
+    
+    /**
+     * Provides the parsed addresses of the given envelope field.
+     * 
+     * @param field the field
+     * @param address the rendered field, may be null
+     * @param charset the charset used to encode personal names
+     * @return the parsed addresses, empty if the field is missing or blank
+     * @throws EmailException if an address is invalid
+     */
+    List<InternetAddress> get(Field field, Envelope.Address address, String charset) throws EmailException {
+        if (address == null) return ImmutableList.of();
+        final String text = address.getText();
+        final String name = address.getName(null);
+        
+        final Parsed cached = fields.get(field.ordinal());
+        if (cached != null && cached.matches(text, name)) return cached.addresses;
+        
+        final List<InternetAddress> parsed = parse(address, charset);
+        fields.set(field.ordinal(), new Parsed(text, name, parsed));
+        return parsed;
+    }
+    
+    /**
+     * Parses the given envelope field. Multiple addresses are separated by semicolon
+     * and have no personal name. A single address uses the name attribute, defaulting to
+     * the address itself.
+     * 
+     * @param address the rendered field, may be null
+     * @param charset the charset used to encode personal names
+     * @return the parsed addresses, empty if the field is missing or blank
+     * @throws EmailException if an address is invalid
+     */
+    static List<InternetAddress> parse(Envelope.Address address, String charset) throws EmailException {
+        if (address == null) return ImmutableList.of();
+        final String text = address.getText();
+        if (StringUtils.isBlank(text)) {
+            return ImmutableList.of();
+        } else if (text.contains(SEPARATOR)) {
+            final ImmutableList.Builder<InternetAddress> builder = ImmutableList.builder();
+            for (String single : text.split(SEPARATOR)) {
+                builder.add(addressOf(single, null, charset));
+            }
+            return builder.build();
+        } else {
+            return ImmutableList.of(addressOf(text, address.getName(text), charset));
+        }
+    }
+    
+    /**
+     * Creates a validated address, like {@link org.apache.commons.mail.Email#addTo(String, String)} does.
+     */
+    private static InternetAddress addressOf(String email, String name, String charset) throws EmailException {
+        try {
+            final InternetAddress address = new InternetAddress(email);
+            if (StringUtils.isNotEmpty(name)) {
+                if (StringUtils.isEmpty(charset)) {
+                    address.setPersonal(name);
+                } else {
+                    address.setPersonal(name, charset);
+                }
+            }
+            address.validate();
+            return address;
+        } catch (AddressException e) {
+            throw new EmailException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new EmailException(e);
+        }
+    }
+    
+    /**
+     * The text and name of a field and the resulting addresses.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Parsed {
+        
+        private final String text;
+        
+        private final String name;
+        
+        private final List<InternetAddress> addresses;
+        
+        Parsed(String text, String name, List<InternetAddress> addresses) {
+            this.text = text;
+            this.name = name;
+            this.addresses = addresses;
+        }
+        
+        boolean matches(String otherText, String otherName) {
+            return StringUtils.equals(text, otherText) && StringUtils.equals(name, otherName);
+        }
+        
+    }
+    
+}
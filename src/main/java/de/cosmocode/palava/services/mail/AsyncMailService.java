@@ -0,0 +1,93 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Asynchronous counterpart of the {@link MailService}. Messages are rendered
+ * and sent by a pool of workers which is fed by a bounded queue. What happens
+ * if the queue is full depends on the configured {@link Backpressure}.
+ *
+ * @author Willi Schoenborn
+ */
+public interface AsyncMailService {
+
+    /**
+     * Asynchronously sends the template described by the given descriptor.
+     * 
+     * @param descriptor the template descriptor
+     * @param params the template parameters
+     * @return a future of the sent message
+     * @throws RejectedExecutionException if the queue is full and {@link Backpressure#REJECT} is configured
+     */
+    Future<MimeMessage> send(TemplateDescriptor descriptor, Map<String, ?> params);
+    
+    /**
+     * Asynchronously sends the template described by the given descriptor.
+     * 
+     * @param descriptor the template descriptor
+     * @param locale the locale
+     * @param params the template parameters
+     * @return a future of the sent message
+     * @throws RejectedExecutionException if the queue is full and {@link Backpressure#REJECT} is configured
+     */
+    Future<MimeMessage> send(TemplateDescriptor descriptor, Locale locale, Map<String, ?> params);
+    
+    /**
+     * Asynchronously sends the template described by the given descriptor.
+     * 
+     * @param descriptor the template descriptor
+     * @param lang the language
+     * @param params the template parameters
+     * @return a future of the sent message
+     * @throws RejectedExecutionException if the queue is full and {@link Backpressure#REJECT} is configured
+     */
+    Future<MimeMessage> send(TemplateDescriptor descriptor, String lang, Map<String, ?> params);
+    
+    /**
+     * Asynchronously sends the specified template.
+     * 
+     * @param templateName the template name
+     * @param lang the language
+     * @param params the template parameters
+     * @param to additional recipients
+     * @return a future of the sent message
+     * @throws RejectedExecutionException if the queue is full and {@link Backpressure#REJECT} is configured
+     */
+    Future<MimeMessage> sendMessage(String templateName, String lang, Map<String, ?> params, String... to);
+    
+    /**
+     * Provides the number of messages waiting in the queue.
+     * 
+     * @return the current queue depth
+     */
+    int getQueueDepth();
+    
+    /**
+     * Provides the number of messages currently being rendered or sent.
+     * 
+     * @return the number of messages in flight
+     */
+    int getInFlight();
+    
+}
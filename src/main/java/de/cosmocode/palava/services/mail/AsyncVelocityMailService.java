@@ -0,0 +1,206 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+
+/**
+ * {@link AsyncMailService} implementation which delegates to the
+ * {@link MailService} using a bounded worker pool.
+ *
+ * @author Willi Schoenborn
+ */
+final class AsyncVelocityMailService implements AsyncMailService, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncVelocityMailService.class);
+    
+    private static final Locale NO_LOCALE = null;
+    
+    private final MailService service;
+    
+    private final AtomicInteger inFlight = new AtomicInteger();
+    
+    private int threads = 4;
+    
+    private int queueSize = 1000;
+    
+    private Backpressure backpressure = Backpressure.BLOCK;
+    
+    private long shutdownTimeout = 30;
+    
+    private TimeUnit shutdownTimeoutUnit = TimeUnit.SECONDS;
+    
+    private volatile ThreadPoolExecutor executor;
+    
+    @Inject
+    public AsyncVelocityMailService(MailService service) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+    }
+    
+    @Inject(optional = true)
+    void setThreads(@Named(VelocityMailServiceConfig.ASYNC_THREADS) int threads) {
+        this.threads = threads;
+    }
+    
+    @Inject(optional = true)
+    void setQueueSize(@Named(VelocityMailServiceConfig.ASYNC_QUEUE_SIZE) int queueSize) {
+        this.queueSize = queueSize;
+    }
+    
+    @Inject(optional = true)
+    void setBackpressure(@Named(VelocityMailServiceConfig.ASYNC_BACKPRESSURE) Backpressure backpressure) {
+        this.backpressure = Preconditions.checkNotNull(backpressure, "Backpressure");
+    }
+    
+    @Inject(optional = true)
+    void setShutdownTimeout(@Named(VelocityMailServiceConfig.ASYNC_SHUTDOWN_TIMEOUT) long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+    
+    @Inject(optional = true)
+    void setShutdownTimeoutUnit(
+        @Named(VelocityMailServiceConfig.ASYNC_SHUTDOWN_TIMEOUT_UNIT) TimeUnit shutdownTimeoutUnit) {
+        this.shutdownTimeoutUnit = Preconditions.checkNotNull(shutdownTimeoutUnit, "ShutdownTimeoutUnit");
+    }
+    
+    @Override
+    public void initialize() {
+        Preconditions.checkState(threads > 0, "Threads must be positive");
+        Preconditions.checkState(queueSize > 0, "QueueSize must be positive");
+        
+        executor = new ThreadPoolExecutor(
+            threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize),
+            new WorkerFactory(), handlerOf(backpressure)
+        );
+    }
+    
+    private RejectedExecutionHandler handlerOf(Backpressure policy) {
+        switch (policy) {
+            case BLOCK: {
+                return new BlockingPolicy();
+            }
+            case REJECT: {
+                return new ThreadPoolExecutor.AbortPolicy();
+            }
+            case CALLER_RUNS: {
+                return new CallerRunsPolicy();
+            }
+            default: {
+                throw new AssertionError("Unknown backpressure " + policy);
+            }
+        }
+    }
+    
+    @Override
+    public Future<MimeMessage> send(TemplateDescriptor descriptor, Map<String, ?> params) {
+        return send(descriptor, NO_LOCALE, params);
+    }
+    
+    @Override
+    public Future<MimeMessage> send(TemplateDescriptor descriptor, Locale locale, Map<String, ?> params) {
+        return send(descriptor, locale == null ? null : locale.toString(), params);
+    }
+    
+    @Override
+    public Future<MimeMessage> send(TemplateDescriptor descriptor, String lang, Map<String, ?> params) {
+        return sendMessage(descriptor.getName(), lang, params);
+    }
+    
+    @Override
+    public Future<MimeMessage> sendMessage(final String templateName, final String lang, 
+        final Map<String, ?> params, final String... to) {
+        Preconditions.checkState(executor != null, "Service has not been initialized");
+        return executor.submit(new Callable<MimeMessage>() {
+            
+            @Override
+            public MimeMessage call() throws Exception {
+                inFlight.incrementAndGet();
+                try {
+                    return service.sendMessage(templateName, lang, params, to);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+            
+        });
+    }
+    
+    @Override
+    public int getQueueDepth() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+    
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+    
+    @Override
+    public void dispose() {
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(shutdownTimeout, shutdownTimeoutUnit)) {
+                LOG.warn("{} queued messages have not been sent", executor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("{} queued messages have not been sent", executor.shutdownNow().size());
+        }
+    }
+    
+    /**
+     * Creates named daemon worker threads.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class WorkerFactory implements ThreadFactory {
+        
+        private final AtomicInteger count = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "velocity-mail-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+/**
+ * Defines how the {@link AsyncMailService} behaves if its queue is full.
+ *
+ * @author Willi Schoenborn
+ */
+public enum Backpressure {
+
+    /**
+     * The caller blocks until there is space in the queue.
+     */
+    BLOCK,
+    
+    /**
+     * The message is rejected with a {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    REJECT,
+    
+    /**
+     * The message is rendered and sent by the calling thread.
+     */
+    CALLER_RUNS;
+    
+}
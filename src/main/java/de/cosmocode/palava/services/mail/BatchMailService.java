@@ -0,0 +1,43 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.Map;
+
+/**
+ * Sends one template to many recipients at once.
+ *
+ * @author Willi Schoenborn
+ */
+public interface BatchMailService {
+
+    /**
+     * Sends the specified template once for every parameter map. The template is looked up
+     * only once, attached and embedded files are read only once and messages are rendered and
+     * delivered in parallel over pooled smtp connections. A failure for one recipient does not
+     * abort the batch, it is reported in the result instead.
+     * 
+     * @param templateName the template name
+     * @param lang the language
+     * @param recipients the template parameters for every single message
+     * @return the result of every single message, in iteration order
+     * @throws Exception if the template could not be loaded or no connection could be opened
+     */
+    BatchResult sendBatch(String templateName, String lang, Iterable<? extends Map<String, ?>> recipients)
+        throws Exception;
+    
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * The per recipient outcome of a {@link BatchMailService#sendBatch(String, String, Iterable)} call.
+ * Recipients are identified by their position in the batch.
+ *
+ * @author Willi Schoenborn
+ */
+public final class BatchResult {
+
+    private final Map<Integer, Exception> failures = Maps.newTreeMap();
+    
+    private int size;
+    
+    BatchResult() {
+        
+    }
+    
+    /**
+     * Records the outcome of the message at the given position. Messages
+     * may complete in any order.
+     * 
+     * @param index the position in the batch
+     * @param failure the cause of the failure, null if the message has been sent
+     */
+    synchronized void completed(int index, Exception failure) {
+        if (failure != null) {
+            failures.put(index, failure);
+        }
+        size = Math.max(size, index + 1);
+    }
+    
+    /**
+     * Provides the number of messages in this batch.
+     * 
+     * @return the batch size
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Provides the number of successfully sent messages.
+     * 
+     * @return the number of sent messages
+     */
+    public int getSent() {
+        return size - failures.size();
+    }
+    
+    /**
+     * Checks whether the message at the given position has been sent.
+     * 
+     * @param index the position in the batch
+     * @return true if the message has been sent, false otherwise
+     * @throws IndexOutOfBoundsException if index is not part of this batch
+     */
+    public boolean isSent(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index + " of " + size);
+        return !failures.containsKey(index);
+    }
+    
+    /**
+     * Provides all failures, indexed by position in the batch.
+     * 
+     * @return an unmodifiable map of failures
+     */
+    public Map<Integer, Exception> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+    
+    @Override
+    public String toString() {
+        return "BatchResult [size=" + size + ", failures=" + failures.size() + "]";
+    }
+    
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * A {@link RejectedExecutionHandler} which runs the task in the submitting
+ * thread while the pool is running. Unlike {@link ThreadPoolExecutor.CallerRunsPolicy},
+ * tasks submitted after shutdown are rejected instead of silently discarded,
+ * so their futures can't be left incomplete forever.
+ *
+ * @author Willi Schoenborn
+ */
+final class CallerRunsPolicy implements RejectedExecutionHandler {
+
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor pool) {
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("Pool has been shut down");
+        }
+        runnable.run();
+    }
+    
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link MessageDelivery} which sends every message over a new connection,
+ * like {@link Transport#send(javax.mail.Message)}, but to the relay of the
+ * given session instead of the one of the message.
+ *
+ * @author Willi Schoenborn
+ */
+final class DirectDelivery implements MessageDelivery {
+
+    private final Session session;
+    
+    DirectDelivery(Session session) {
+        this.session = Preconditions.checkNotNull(session, "Session");
+    }
+    
+    @Override
+    public void deliver(MimeMessage message) throws MessagingException {
+        message.saveChanges();
+        final Address[] recipients = message.getAllRecipients();
+        if (recipients == null || recipients.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+        final Transport transport = session.getTransport("smtp");
+        transport.connect();
+        try {
+            transport.sendMessage(message, recipients);
+        } finally {
+            transport.close();
+        }
+    }
+    
+    @Override
+    public void close() {
+        
+    }
+    
+}
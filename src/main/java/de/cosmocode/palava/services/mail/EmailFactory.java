@@ -18,22 +18,24 @@ package de.cosmocode.palava.services.mail;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
+import javax.activation.DataSource;
 import javax.activation.FileDataSource;
+import javax.mail.internet.InternetAddress;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.mail.Email;
 import org.apache.commons.mail.EmailException;
 import org.apache.commons.mail.HtmlEmail;
 import org.apache.commons.mail.SimpleEmail;
 import org.jdom.Document;
-import org.jdom.Element;
 
 /**
  * Creates org.apache.commons.mail.Email Objects from XML-Templates.
+ * The xml is either read into an {@link Envelope} using the {@link EnvelopeReader}
+ * or taken from an already parsed {@link Document}.
  * 
  * @deprecated no need to use anymore
  * @author schoenborn@cosmocode.de
@@ -44,34 +46,39 @@ class EmailFactory {
     private static final EmailFactory INSTANCE = new EmailFactory();
 
     private static final String CHARSET = "UTF-8";
-    private static final String EMAIL_SEPARATOR = ";";
     
     protected EmailFactory() {
         
     }
 
+    Email build(Document document, Embedder embed) throws EmailException, IOException {
+        return build(Envelope.of(document), embed);
+    }
+
+    Email build(Envelope envelope, Embedder embed) throws EmailException, IOException {
+        return build(envelope, embed, null, null);
+    }
+
+    /**
+     * Builds an email from the given envelope.
+     * 
+     * @param envelope the envelope
+     * @param embed the embedder used during rendering
+     * @param resources the cache used to load embedded and attached files, may be null
+     * @param addresses the cache of parsed recipients of the rendered template, may be null
+     * @return a new email
+     * @throws EmailException if building the email failed
+     * @throws IOException if an embedded or attached file could not be read
+     */
     /* CHECKSTYLE:OFF */
-    @SuppressWarnings("unchecked")
-    Email build(Document document, Embedder embed) throws EmailException, FileNotFoundException {
+    Email build(Envelope envelope, Embedder embed, ResourceCache resources, AddressCache addresses) 
+        throws EmailException, IOException {
     /* CHECKSTYLE:ON */
         
-        final Element root = document.getRootElement();
-        
-        final List<Element> messages = root.getChildren("message");
-        if (messages.isEmpty()) throw new IllegalArgumentException("No messages found");
+        final Map<ContentType, String> available = envelope.getMessages();
+        if (available.isEmpty()) throw new IllegalArgumentException("No messages found");
         
-        final List<Element> attachments = root.getChildren("attachment");
-        
-        final Map<ContentType, String> available = new HashMap<ContentType, String>();
-        
-        for (Element element : messages) {
-            final String type = element.getAttributeValue("type");
-            final ContentType messageType = StringUtils.equals(type, "html") ? ContentType.HTML : ContentType.PLAIN;
-            if (available.containsKey(messageType)) {
-                throw new IllegalArgumentException("Two messages with the same types have been defined.");
-            }
-            available.put(messageType, element.getText());
-        }
+        final List<Envelope.Attachment> attachments = envelope.getAttachments();
         
         final Email email;
         
@@ -117,30 +124,35 @@ class EmailFactory {
                     file = new File(embed.getResourcePath(), path);
                 }
                 
-                if (file.exists()) {
-                    htmlEmail.embed(new FileDataSource(file), name, cid);
-                } else {
+                final DataSource source = dataSourceOf(file, resources);
+                if (source == null) {
                     throw new FileNotFoundException(file.getAbsolutePath());
+                } else {
+                    htmlEmail.embed(source, name, cid);
                 }
             }
             
             /**
              * Attached binary data
              */
-            for (Element attachment : attachments) {
-                final String name = attachment.getAttributeValue("name", "");
-                final String description = attachment.getAttributeValue("description", "");
-                final String path = attachment.getAttributeValue("path");
+            for (Envelope.Attachment attachment : attachments) {
+                final String name = attachment.getName();
+                final String description = attachment.getDescription();
+                final String path = attachment.getPath();
                 
                 if (path == null) throw new IllegalArgumentException("Attachment path was not set");
                 File file = new File(path);
                 
-                if (!file.exists()) file = new File(embed.getResourcePath(), path);
+                DataSource source = dataSourceOf(file, resources);
+                if (source == null) {
+                    file = new File(embed.getResourcePath(), path);
+                    source = dataSourceOf(file, resources);
+                }
                 
-                if (file.exists()) {
-                    htmlEmail.attach(new FileDataSource(file), name, description);
-                } else {
+                if (source == null) {
                     throw new FileNotFoundException(file.getAbsolutePath());
+                } else {
+                    htmlEmail.attach(source, name, description);
                 }
             }
             
@@ -153,74 +165,47 @@ class EmailFactory {
             throw new IllegalArgumentException("No valid message found in template.");
         }
         
-        final String subject = root.getChildText("subject");
-        email.setSubject(subject);
+        email.setSubject(envelope.getSubject());
         
-        final Element from = root.getChild("from");
+        final Envelope.Address from = envelope.getFrom();
         final String fromAddress = from == null ? null : from.getText();
-        final String fromName = from == null ? fromAddress : from.getAttributeValue("name", fromAddress);
+        final String fromName = from == null ? fromAddress : from.getName(fromAddress);
         email.setFrom(fromAddress, fromName);
 
         
-        final Element to = root.getChild("to");
-        if (to != null) {
-            final String toAddress = to.getText();
-            if (StringUtils.isNotBlank(toAddress) && toAddress.contains(EMAIL_SEPARATOR)) {
-                final String[] toAddresses = toAddress.split(EMAIL_SEPARATOR);
-                for (String address : toAddresses) {
-                    email.addTo(address);
-                }
-            } else if (StringUtils.isNotBlank(toAddress)) {
-                final String toName = to.getAttributeValue("name", toAddress);
-                email.addTo(toAddress, toName);
-            }
-        }
+        final List<InternetAddress> to = addressesOf(AddressCache.Field.TO, envelope.getTo(), addresses);
+        if (!to.isEmpty()) email.setTo(to);
         
-        final Element cc = root.getChild("cc");
-        if (cc != null) {
-            final String ccAddress = cc.getText();
-            if (StringUtils.isNotBlank(ccAddress) && ccAddress.contains(EMAIL_SEPARATOR)) {
-                final String[] ccAddresses = ccAddress.split(EMAIL_SEPARATOR);
-                for (String address : ccAddresses) {
-                    email.addCc(address);
-                }
-            } else if (StringUtils.isNotBlank(ccAddress)) {
-                final String ccName = cc.getAttributeValue("name", ccAddress);
-                email.addCc(ccAddress, ccName);
-            }
-        }
+        final List<InternetAddress> cc = addressesOf(AddressCache.Field.CC, envelope.getCc(), addresses);
+        if (!cc.isEmpty()) email.setCc(cc);
         
-        final Element bcc = root.getChild("bcc");
-        if (bcc != null) {
-            final String bccAddress = bcc.getText();
-            if (StringUtils.isNotBlank(bccAddress) && bccAddress.contains(EMAIL_SEPARATOR)) {
-                final String[] bccAddresses = bccAddress.split(EMAIL_SEPARATOR);
-                for (String address : bccAddresses) {
-                    email.addBcc(address);
-                }
-            } else if (StringUtils.isNotBlank(bccAddress)) {
-                final String bccName = bcc.getAttributeValue("name", bccAddress);
-                email.addBcc(bccAddress, bccName);
-            }
-        }
+        final List<InternetAddress> bcc = addressesOf(AddressCache.Field.BCC, envelope.getBcc(), addresses);
+        if (!bcc.isEmpty()) email.setBcc(bcc);
         
-        final Element replyTo = root.getChild("replyTo");
-        if (replyTo != null) {
-            final String replyToAddress = replyTo.getText();
-            if (StringUtils.isNotBlank(replyToAddress) && replyToAddress.contains(EMAIL_SEPARATOR)) {
-                final String[] replyToAddresses = replyToAddress.split(EMAIL_SEPARATOR);
-                for (String address : replyToAddresses) {
-                    email.addReplyTo(address);
-                }
-            } else if (StringUtils.isNotBlank(replyToAddress)) {
-                final String replyToName = replyTo.getAttributeValue("name", replyToAddress);
-                email.addReplyTo(replyToAddress, replyToName);
-            }
-        }
+        final List<InternetAddress> replyTo = 
+            addressesOf(AddressCache.Field.REPLY_TO, envelope.getReplyTo(), addresses);
+        if (!replyTo.isEmpty()) email.setReplyTo(replyTo);
         
         return email;
     }
     
+    private List<InternetAddress> addressesOf(AddressCache.Field field, Envelope.Address address, 
+        AddressCache addresses) throws EmailException {
+        if (addresses == null) {
+            return AddressCache.parse(address, CHARSET);
+        } else {
+            return addresses.get(field, address, CHARSET);
+        }
+    }
+    
+    private DataSource dataSourceOf(File file, ResourceCache resources) throws IOException {
+        if (resources == null) {
+            return file.exists() ? new FileDataSource(file) : null;
+        } else {
+            return resources.get(file);
+        }
+    }
+    
     public static final EmailFactory getInstance() {
         return INSTANCE;
     }
@@ -17,10 +17,13 @@
 package de.cosmocode.palava.services.mail;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+
+import javax.activation.DataSource;
 
 import org.apache.velocity.app.VelocityEngine;
 import org.slf4j.Logger;
@@ -37,17 +40,34 @@ public class Embedder {
 
     // mapping  path => cid
     private final Map <String, String> embeddings = new HashMap<String, String>();
-    private final List<String> filenames = new ArrayList<String>();
+    // mapping  filename => path
+    private final Map<String, String> filenames = new HashMap<String, String>();
+    private final Set<String> cids = new HashSet<String>();
     private int cidCount;
     
     private final File resourcePath;
     
+    private final ResourceCache resources;
+    
     public Embedder(File resourcePath) {
         this.resourcePath = resourcePath;
+        this.resources = null;
     }
     
     public Embedder(VelocityEngine engine) {
+        this(engine, null);
+    }
+    
+    /**
+     * Creates an embedder which derives content ids from the digest of the
+     * embedded file, so the same image gets the same content id in every message.
+     * 
+     * @param engine the engine providing the resource path
+     * @param resources the cache used to load files and their digests, may be null
+     */
+    Embedder(VelocityEngine engine, ResourceCache resources) {
         this.resourcePath = new File(engine.getProperty("file.resource.loader.path").toString());
+        this.resources = resources;
     }
     
     /**
@@ -60,7 +80,7 @@ public class Embedder {
         String cid = embeddings.get(path);
 
         if (cid == null) {
-            cid = generateCID();
+            cid = generateCID(path);
             setEmbedding(path, cid);
             LOG.debug("creating inline image; path=" + path + " cid=" + cid);
         } else {
@@ -92,9 +112,37 @@ public class Embedder {
         return fileName;
     }
 
-    private String generateCID() {
-        cidCount++;
-        return System.currentTimeMillis() + "" + cidCount;
+    private String generateCID(String path) {
+        final String digest = digestOf(path);
+        if (digest == null || cids.contains(digest)) {
+            cidCount++;
+            return System.currentTimeMillis() + "" + cidCount;
+        } else {
+            return digest;
+        }
+    }
+    
+    private String digestOf(String path) {
+        if (resources == null) return null;
+        
+        final File file;
+        if (path.startsWith(File.separator)) {
+            file = new File(path);
+        } else {
+            file = new File(resourcePath, path);
+        }
+        
+        try {
+            final DataSource source = resources.get(file);
+            if (source instanceof ResourceCache.Entry) {
+                return ResourceCache.Entry.class.cast(source).getDigest();
+            } else {
+                return null;
+            }
+        } catch (IOException e) {
+            LOG.debug("Unable to compute digest of " + file, e);
+            return null;
+        }
     }
     
     /**
@@ -107,12 +155,13 @@ public class Embedder {
         final String[] parts = path.split("/");
         final String fileName = parts[parts.length - 1];
         
-        if (embeddings.get(path) == null && filenames.contains(fileName)) {
+        if (embeddings.get(path) == null && filenames.containsKey(fileName)) {
             throw new IllegalArgumentException(fileName + " was embedded twice from different paths");
         }
         
-        filenames.add(fileName);
+        filenames.put(fileName, path);
         embeddings.put(path, cid);
+        cids.add(cid);
     }
     
     public Map<String, String> getEmbeddings() {
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.parser.node.Node;
+
+/**
+ * A velocity directive which encodes its single argument using the {@link EntityEncoder}
+ * and writes the result straight into the merge writer, e.g. <code>#encode($user.name)</code>.
+ * Unlike <code>$entity.encode(...)</code>, no intermediate string is created.
+ * Null values are written as nothing.
+ *
+ * @author Willi Schoenborn
+ */
+public final class EncodeDirective extends Directive {
+
+    private final EntityEncoder encoder = EntityEncoder.getInstance();
+    
+    @Override
+    public String getName() {
+        return "encode";
+    }
+    
+    @Override
+    public int getType() {
+        return LINE;
+    }
+    
+    @Override
+    public void init(RuntimeServices services, InternalContextAdapter context, Node node) 
+        throws TemplateInitException {
+        super.init(services, context, node);
+        if (node.jjtGetNumChildren() != 1) {
+            throw new TemplateInitException("#encode() requires exactly one argument", 
+                context.getCurrentTemplateName(), node.getColumn(), node.getLine());
+        }
+    }
+    
+    @Override
+    public boolean render(InternalContextAdapter context, Writer writer, Node node) 
+        throws IOException, MethodInvocationException {
+        final Object value = node.jjtGetChild(0).value(context);
+        if (value != null) {
+            encoder.encode(value.toString(), writer);
+        }
+        return true;
+    }
+    
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataSource;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+
+import de.cosmocode.palava.mail.templating.velocity.CacheStatistics;
+
+/**
+ * A size bounded cache of base64 encoded {@link ResourceCache} entries, keyed by
+ * their content digest. Parts of a built message which carry a cached resource
+ * are replaced by {@link PreEncodedBodyPart}s, which write the encoded bytes
+ * as they are instead of encoding the resource again for every message.
+ *
+ * @author Willi Schoenborn
+ */
+final class EncodedPartCache implements CacheStatistics {
+
+    private final long maximumSize;
+    
+    private final Map<String, byte[]> encoded = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    
+    private long size;
+    
+    private final AtomicLong hits = new AtomicLong();
+    
+    private final AtomicLong misses = new AtomicLong();
+    
+    EncodedPartCache(long maximumSize) {
+        Preconditions.checkArgument(maximumSize >= 0, "MaximumSize must not be negative");
+        this.maximumSize = maximumSize;
+    }
+    
+    /**
+     * Replaces all parts of the given message which carry a cached resource
+     * with pre encoded parts.
+     * 
+     * @param message a built, but not yet saved message
+     * @throws MessagingException if the message structure could not be accessed
+     * @throws IOException if encoding a resource failed
+     */
+    void splice(MimeMessage message) throws MessagingException, IOException {
+        if (!isMultipart(message)) return;
+        final Object content = message.getContent();
+        if (content instanceof Multipart) {
+            splice((Multipart) content);
+        }
+    }
+    
+    private void splice(Multipart multipart) throws MessagingException, IOException {
+        for (int i = 0; i < multipart.getCount(); i++) {
+            final BodyPart part = multipart.getBodyPart(i);
+            final DataSource source = part.getDataHandler().getDataSource();
+            if (source instanceof ResourceCache.Entry && part instanceof MimeBodyPart) {
+                final ResourceCache.Entry entry = ResourceCache.Entry.class.cast(source);
+                final byte[] bytes = encode(entry);
+                if (bytes == null) continue;
+                multipart.removeBodyPart(i);
+                multipart.addBodyPart(new PreEncodedBodyPart(MimeBodyPart.class.cast(part), bytes), i);
+            } else if (isMultipart(part)) {
+                // getContent() of leaf parts would read and decode their whole content
+                final Object content = part.getContent();
+                if (content instanceof Multipart) {
+                    splice((Multipart) content);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks the mime type of the given part like {@link Part#isMimeType(String)} does,
+     * but using the type of its data handler, because the Content-Type header of parts
+     * is only set once the message gets saved.
+     * 
+     * @param part the part
+     * @return true if the part holds a multipart
+     * @throws MessagingException if the data handler could not be accessed
+     */
+    private static boolean isMultipart(Part part) throws MessagingException {
+        final String type = part.getDataHandler().getContentType();
+        return type != null && type.regionMatches(true, 0, "multipart/", 0, "multipart/".length());
+    }
+    
+    private byte[] encode(ResourceCache.Entry entry) throws IOException, MessagingException {
+        // base64 grows by a third, plus line breaks
+        if (entry.getLength() / 3 * 4 > maximumSize) return null;
+        
+        final String digest = entry.getDigest();
+        synchronized (this) {
+            final byte[] cached = encoded.get(digest);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+        
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) (entry.getLength() / 3 * 4 + 64));
+        final OutputStream base64 = MimeUtility.encode(buffer, "base64");
+        final InputStream input = entry.getInputStream();
+        ByteStreams.copy(input, base64);
+        base64.close();
+        final byte[] bytes = buffer.toByteArray();
+        
+        synchronized (this) {
+            final byte[] previous = encoded.put(digest, bytes);
+            if (previous != null) {
+                size -= previous.length;
+            }
+            size += bytes.length;
+            
+            final Iterator<byte[]> iterator = encoded.values().iterator();
+            while (size > maximumSize && iterator.hasNext()) {
+                size -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+        return bytes;
+    }
+    
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+    
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+    
+}
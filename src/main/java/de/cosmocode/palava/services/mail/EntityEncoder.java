@@ -16,6 +16,9 @@
 
 package de.cosmocode.palava.services.mail;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * A small helper class used inside template to encode certain xml entities.
  * 
@@ -25,24 +28,75 @@ public final class EntityEncoder {
 
     private static final EntityEncoder INSTANCE = new EntityEncoder();
     
+    private static final String[] REPLACEMENTS = new String[128];
+    
+    static {
+        REPLACEMENTS['&'] = "&amp;";
+        REPLACEMENTS['>'] = "&gt;";
+        REPLACEMENTS['<'] = "&lt;";
+        REPLACEMENTS['\''] = "&apos;";
+        REPLACEMENTS['"'] = "&quot;";
+        REPLACEMENTS['%'] = "&#37;";
+    }
+    
     private EntityEncoder() {
         
     }
     
+    private static String replacementOf(char c) {
+        return c < REPLACEMENTS.length ? REPLACEMENTS[c] : null;
+    }
+    
     /**
-     * Encodes the given string.
+     * Encodes the given string. The string is scanned only once and
+     * returned as is if it does not contain any special characters.
      * 
      * @param source the source string
      * @return the encoded version
      */
     public String encode(String source) {
-        return source == null ? "" : source.
-            replace("&",  "&amp;").
-            replace(">",  "&gt;").
-            replace("<",  "&lt;").
-            replace("'",  "&apos;").
-            replace("\"", "&quot;").
-            replace("%",  "&#37;");
+        if (source == null) return "";
+        final int length = source.length();
+        for (int i = 0; i < length; i++) {
+            if (replacementOf(source.charAt(i)) != null) {
+                final StringBuilder builder = new StringBuilder(length + 16);
+                builder.append(source, 0, i);
+                for (int j = i; j < length; j++) {
+                    final char c = source.charAt(j);
+                    final String replacement = replacementOf(c);
+                    if (replacement == null) {
+                        builder.append(c);
+                    } else {
+                        builder.append(replacement);
+                    }
+                }
+                return builder.toString();
+            }
+        }
+        return source;
+    }
+    
+    /**
+     * Encodes the given string directly into the given writer. This backs
+     * the <code>#encode(...)</code> directive, see {@link EncodeDirective}.
+     * 
+     * @param source the source string
+     * @param writer the target writer
+     * @throws IOException if writing failed
+     */
+    public void encode(String source, Writer writer) throws IOException {
+        if (source == null) return;
+        final int length = source.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final String replacement = replacementOf(source.charAt(i));
+            if (replacement != null) {
+                writer.write(source, start, i - start);
+                writer.write(replacement);
+                start = i + 1;
+            }
+        }
+        writer.write(source, start, length - start);
     }
 
     public static EntityEncoder getInstance() {
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import org.apache.velocity.app.event.ReferenceInsertionEventHandler;
+
+/**
+ * A {@link ReferenceInsertionEventHandler} which encodes the value of every
+ * inserted reference using the {@link EntityEncoder}. References to the
+ * "entity" and "embed" helpers are inserted as they are, so templates
+ * which still call <code>$entity.encode(...)</code> are not encoded twice.
+ *
+ * @author Willi Schoenborn
+ */
+public final class EntityEncodingHandler implements ReferenceInsertionEventHandler {
+
+    private final EntityEncoder encoder = EntityEncoder.getInstance();
+    
+    @Override
+    public Object referenceInsert(String reference, Object value) {
+        if (value == null || isHelper(reference)) {
+            return value;
+        } else {
+            return encoder.encode(value.toString());
+        }
+    }
+    
+    private boolean isHelper(String reference) {
+        // strip leading $, ! and { to get to the identifier
+        int start = 0;
+        while (start < reference.length() && "$!{".indexOf(reference.charAt(start)) >= 0) {
+            start++;
+        }
+        return reference.startsWith("entity.", start) || reference.startsWith("embed.", start);
+    }
+    
+}
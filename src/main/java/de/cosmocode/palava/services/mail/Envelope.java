@@ -0,0 +1,230 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.jdom.Document;
+import org.jdom.Element;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The content of a rendered mail template, i.e. the messages, attachments,
+ * subject and addresses of the xml envelope.
+ *
+ * @author Willi Schoenborn
+ */
+final class Envelope {
+
+    private final Map<ContentType, String> messages = Maps.newHashMap();
+    
+    private final List<Attachment> attachments = Lists.newArrayList();
+    
+    private String subject;
+    
+    private Address from;
+    
+    private Address to;
+    
+    private Address cc;
+    
+    private Address bcc;
+    
+    private Address replyTo;
+    
+    /**
+     * Adds a message of the given type.
+     * 
+     * @param type the type attribute, "html" or anything else for plain text
+     * @param text the message text
+     * @throws IllegalArgumentException if a message of the same type has been added before
+     */
+    void addMessage(String type, String text) {
+        final ContentType messageType = StringUtils.equals(type, "html") ? ContentType.HTML : ContentType.PLAIN;
+        if (messages.containsKey(messageType)) {
+            throw new IllegalArgumentException("Two messages with the same types have been defined.");
+        }
+        messages.put(messageType, text);
+    }
+    
+    void addAttachment(String name, String description, String path) {
+        attachments.add(new Attachment(name, description, path));
+    }
+    
+    Map<ContentType, String> getMessages() {
+        return messages;
+    }
+    
+    List<Attachment> getAttachments() {
+        return attachments;
+    }
+    
+    String getSubject() {
+        return subject;
+    }
+    
+    void setSubject(String subject) {
+        this.subject = subject;
+    }
+    
+    Address getFrom() {
+        return from;
+    }
+    
+    void setFrom(Address from) {
+        this.from = from;
+    }
+    
+    Address getTo() {
+        return to;
+    }
+    
+    void setTo(Address to) {
+        this.to = to;
+    }
+    
+    Address getCc() {
+        return cc;
+    }
+    
+    void setCc(Address cc) {
+        this.cc = cc;
+    }
+    
+    Address getBcc() {
+        return bcc;
+    }
+    
+    void setBcc(Address bcc) {
+        this.bcc = bcc;
+    }
+    
+    Address getReplyTo() {
+        return replyTo;
+    }
+    
+    void setReplyTo(Address replyTo) {
+        this.replyTo = replyTo;
+    }
+    
+    /**
+     * Reads an envelope from an already parsed document.
+     * 
+     * @param document the document
+     * @return the envelope
+     */
+    @SuppressWarnings("unchecked")
+    static Envelope of(Document document) {
+        final Element root = document.getRootElement();
+        final Envelope envelope = new Envelope();
+        
+        for (Element message : (List<Element>) root.getChildren("message")) {
+            envelope.addMessage(message.getAttributeValue("type"), message.getText());
+        }
+        
+        for (Element attachment : (List<Element>) root.getChildren("attachment")) {
+            envelope.addAttachment(
+                attachment.getAttributeValue("name", ""),
+                attachment.getAttributeValue("description", ""),
+                attachment.getAttributeValue("path")
+            );
+        }
+        
+        envelope.setSubject(root.getChildText("subject"));
+        envelope.setFrom(Address.of(root.getChild("from")));
+        envelope.setTo(Address.of(root.getChild("to")));
+        envelope.setCc(Address.of(root.getChild("cc")));
+        envelope.setBcc(Address.of(root.getChild("bcc")));
+        envelope.setReplyTo(Address.of(root.getChild("replyTo")));
+        
+        return envelope;
+    }
+    
+    /**
+     * An address element, consisting of its text and the optional name attribute.
+     *
+     * @author Willi Schoenborn
+     */
+    static final class Address {
+        
+        private final String text;
+        
+        private final String name;
+        
+        Address(String text, String name) {
+            this.text = text;
+            this.name = name;
+        }
+        
+        String getText() {
+            return text;
+        }
+        
+        /**
+         * Provides the name attribute.
+         * 
+         * @param defaultValue the value to return if no name was specified
+         * @return the name or the default value
+         */
+        String getName(String defaultValue) {
+            return name == null ? defaultValue : name;
+        }
+        
+        private static Address of(Element element) {
+            return element == null ? null : new Address(element.getText(), element.getAttributeValue("name"));
+        }
+        
+    }
+    
+    /**
+     * An attachment element.
+     *
+     * @author Willi Schoenborn
+     */
+    static final class Attachment {
+        
+        private final String name;
+        
+        private final String description;
+        
+        private final String path;
+        
+        Attachment(String name, String description, String path) {
+            this.name = name;
+            this.description = description;
+            this.path = path;
+        }
+        
+        String getName() {
+            return name;
+        }
+        
+        String getDescription() {
+            return description;
+        }
+        
+        String getPath() {
+            return path;
+        }
+        
+    }
+    
+}
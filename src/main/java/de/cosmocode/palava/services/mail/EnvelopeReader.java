@@ -0,0 +1,162 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.Reader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads an {@link Envelope} from rendered template xml using a streaming
+ * parser, without building a document tree. Instances are thread safe.
+ *
+ * @author Willi Schoenborn
+ */
+final class EnvelopeReader {
+
+    private static final EnvelopeReader INSTANCE = new EnvelopeReader();
+    
+    private final XMLInputFactory factory;
+    
+    private EnvelopeReader() {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+    }
+    
+    /**
+     * Reads the envelope from the given reader.
+     * 
+     * @param reader the rendered template
+     * @return the envelope
+     * @throws XMLStreamException if the xml is malformed
+     */
+    Envelope read(Reader reader) throws XMLStreamException {
+        final XMLStreamReader xml = factory.createXMLStreamReader(reader);
+        try {
+            // move to the root element
+            while (xml.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            
+            final Envelope envelope = new Envelope();
+            
+            while (true) {
+                final int event = xml.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    break;
+                } else if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                
+                final String name = xml.getLocalName();
+                if ("message".equals(name)) {
+                    final String type = xml.getAttributeValue(null, "type");
+                    envelope.addMessage(type, readText(xml));
+                } else if ("attachment".equals(name)) {
+                    envelope.addAttachment(
+                        attribute(xml, "name", ""),
+                        attribute(xml, "description", ""),
+                        xml.getAttributeValue(null, "path")
+                    );
+                    skip(xml);
+                } else if ("subject".equals(name) && envelope.getSubject() == null) {
+                    envelope.setSubject(readText(xml));
+                } else if ("from".equals(name) && envelope.getFrom() == null) {
+                    envelope.setFrom(readAddress(xml));
+                } else if ("to".equals(name) && envelope.getTo() == null) {
+                    envelope.setTo(readAddress(xml));
+                } else if ("cc".equals(name) && envelope.getCc() == null) {
+                    envelope.setCc(readAddress(xml));
+                } else if ("bcc".equals(name) && envelope.getBcc() == null) {
+                    envelope.setBcc(readAddress(xml));
+                } else if ("replyTo".equals(name) && envelope.getReplyTo() == null) {
+                    envelope.setReplyTo(readAddress(xml));
+                } else {
+                    skip(xml);
+                }
+            }
+            
+            return envelope;
+        } finally {
+            xml.close();
+        }
+    }
+    
+    private String attribute(XMLStreamReader xml, String name, String defaultValue) {
+        final String value = xml.getAttributeValue(null, name);
+        return value == null ? defaultValue : value;
+    }
+    
+    private Envelope.Address readAddress(XMLStreamReader xml) throws XMLStreamException {
+        final String name = xml.getAttributeValue(null, "name");
+        return new Envelope.Address(readText(xml), name);
+    }
+    
+    /**
+     * Reads the direct text content of the current element, ignoring nested
+     * elements, and moves the reader to the matching end tag.
+     */
+    private String readText(XMLStreamReader xml) throws XMLStreamException {
+        final StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            switch (xml.next()) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    depth++;
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT: {
+                    depth--;
+                    break;
+                }
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE: {
+                    if (depth == 1) {
+                        text.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+                    }
+                    break;
+                }
+                default: {
+                    break;
+                }
+            }
+        }
+        return text.toString();
+    }
+    
+    private void skip(XMLStreamReader xml) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+    
+    public static EnvelopeReader getInstance() {
+        return INSTANCE;
+    }
+    
+}
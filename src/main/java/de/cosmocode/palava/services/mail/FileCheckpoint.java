@@ -0,0 +1,68 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+/**
+ * A {@link MergeCheckpoint} which stores the progress in a file. The file is
+ * replaced on every save, so an interrupted save never corrupts it.
+ *
+ * @author Willi Schoenborn
+ */
+public final class FileCheckpoint implements MergeCheckpoint {
+
+    private final File file;
+    
+    private final File temporary;
+    
+    public FileCheckpoint(File file) {
+        this.file = Preconditions.checkNotNull(file, "File");
+        this.temporary = new File(file.getPath() + ".tmp");
+    }
+    
+    @Override
+    public long load() throws IOException {
+        if (!file.exists()) return 0L;
+        final String content = Files.toString(file, Charsets.US_ASCII).trim();
+        try {
+            return Long.parseLong(content);
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt checkpoint " + file + ": " + content);
+        }
+    }
+    
+    @Override
+    public void save(long processed) throws IOException {
+        Files.write(Long.toString(processed), temporary, Charsets.US_ASCII);
+        // renaming over an existing file fails on some platforms
+        if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "FileCheckpoint [file=" + file + "]";
+    }
+    
+}
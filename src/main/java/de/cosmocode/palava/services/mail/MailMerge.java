@@ -0,0 +1,278 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.MimeMessage;
+
+import org.apache.velocity.Template;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+/**
+ * A single run of {@link MailMergeService#merge(String, String, Iterator, MergeCheckpoint)}
+ * or {@link BatchMailService#sendBatch(String, String, Iterable)}.
+ * Recipients are read by the calling thread and handed to a bounded pool of render workers,
+ * which feed a bounded pool of delivery workers. Both pools block when full, which throttles
+ * reading to the speed of the slowest stage.
+ *
+ * @author Willi Schoenborn
+ */
+final class MailMerge {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MailMerge.class);
+    
+    private final VelocityMailService service;
+    
+    private final MessageDelivery delivery;
+    
+    private final int renderThreads;
+    
+    private final int deliveryThreads;
+    
+    private final int queueSize;
+    
+    private final long checkpointInterval;
+    
+    MailMerge(VelocityMailService service, MessageDelivery delivery, int renderThreads, int deliveryThreads, 
+        int queueSize, long checkpointInterval) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+        this.delivery = Preconditions.checkNotNull(delivery, "Delivery");
+        Preconditions.checkArgument(renderThreads > 0, "RenderThreads must be positive");
+        Preconditions.checkArgument(deliveryThreads > 0, "DeliveryThreads must be positive");
+        Preconditions.checkArgument(queueSize > 0, "QueueSize must be positive");
+        Preconditions.checkArgument(checkpointInterval > 0, "CheckpointInterval must be positive");
+        this.renderThreads = renderThreads;
+        this.deliveryThreads = deliveryThreads;
+        this.queueSize = queueSize;
+        this.checkpointInterval = checkpointInterval;
+    }
+    
+    MergeResult run(final Template template, Iterator<? extends Map<String, ?>> recipients, 
+        MergeCheckpoint checkpoint) throws IOException, InterruptedException {
+        
+        final long skip = checkpoint == null ? 0L : checkpoint.load();
+        long index = 0L;
+        while (index < skip && recipients.hasNext()) {
+            recipients.next();
+            index++;
+        }
+        final long skipped = index;
+        
+        final Progress progress = new Progress(checkpoint, index, checkpointInterval);
+        try {
+            dispatch(template, recipients, index, progress);
+        } finally {
+            // an interrupted merge resumes behind everything sent so far
+            progress.save();
+        }
+        return progress.toResult(skipped);
+    }
+    
+    BatchResult batch(Template template, Iterable<? extends Map<String, ?>> recipients) 
+        throws InterruptedException {
+        final BatchResult result = new BatchResult();
+        dispatch(template, recipients.iterator(), 0L, new Completion() {
+            
+            @Override
+            public void completed(long index, Exception failure) {
+                result.completed((int) index, failure);
+            }
+            
+        });
+        return result;
+    }
+    
+    private void dispatch(final Template template, Iterator<? extends Map<String, ?>> recipients, long first, 
+        final Completion completion) throws InterruptedException {
+        long index = first;
+        final ThreadPoolExecutor renderers = newPool(renderThreads, "velocity-merge-render-");
+        final ThreadPoolExecutor senders = newPool(deliveryThreads, "velocity-merge-send-");
+        
+        try {
+            while (recipients.hasNext()) {
+                final Map<String, ?> params = recipients.next();
+                final long current = index++;
+                renderers.execute(new Runnable() {
+                    
+                    @Override
+                    public void run() {
+                        final MimeMessage message;
+                        /*CHECKSTYLE:OFF*/
+                        try {
+                            message = service.render(template, params);
+                        } catch (Exception e) {
+                            LOG.warn("Unable to render message #" + current + " of " + template.getName(), e);
+                            completion.completed(current, e);
+                            return;
+                        }
+                        /*CHECKSTYLE:ON*/
+                        send(senders, template, current, message, completion);
+                    }
+                    
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            // interrupted while waiting for room, the checkpoint allows to resume
+            renderers.shutdownNow();
+            senders.shutdownNow();
+            throw new InterruptedException("Interrupted merge of " + template.getName() + " at #" + index);
+        }
+        
+        try {
+            renderers.shutdown();
+            renderers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            senders.shutdown();
+            senders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            // don't keep sending behind the back of a caller who may resume already
+            renderers.shutdownNow();
+            senders.shutdownNow();
+            throw e;
+        }
+    }
+    
+    private void send(ThreadPoolExecutor senders, final Template template, final long current, 
+        final MimeMessage message, final Completion completion) {
+        senders.execute(new Runnable() {
+            
+            @Override
+            public void run() {
+                /*CHECKSTYLE:OFF*/
+                try {
+                    service.deliver(delivery, template.getName(), message);
+                    completion.completed(current, null);
+                } catch (Exception e) {
+                    LOG.warn("Unable to send message #" + current + " of " + template.getName(), e);
+                    completion.completed(current, e);
+                }
+                /*CHECKSTYLE:ON*/
+            }
+            
+        });
+    }
+    
+    private ThreadPoolExecutor newPool(int threads, final String name) {
+        return new ThreadPoolExecutor(
+            threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize),
+            new ThreadFactory() {
+                
+                private final AtomicInteger count = new AtomicInteger();
+                
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, name + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+                
+            },
+            new BlockingPolicy()
+        );
+    }
+    
+    /**
+     * Receives the outcome of every single recipient, in completion order.
+     *
+     * @author Willi Schoenborn
+     */
+    private interface Completion {
+        
+        void completed(long index, Exception failure);
+        
+    }
+    
+    /**
+     * Tracks the highest position up to which all recipients have been processed.
+     * Only positions completed out of order are kept, which are bounded by the
+     * number of messages in flight.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Progress implements Completion {
+        
+        private final SortedSet<Long> completed = Sets.newTreeSet();
+        
+        private final MergeCheckpoint checkpoint;
+        
+        private final long interval;
+        
+        private long watermark;
+        
+        private long saved;
+        
+        private long sent;
+        
+        private long failed;
+        
+        Progress(MergeCheckpoint checkpoint, long watermark, long interval) {
+            this.checkpoint = checkpoint;
+            this.watermark = watermark;
+            this.saved = watermark;
+            this.interval = interval;
+        }
+        
+        @Override
+        public synchronized void completed(long index, Exception failure) {
+            if (failure == null) {
+                sent++;
+            } else {
+                failed++;
+            }
+            
+            completed.add(index);
+            while (!completed.isEmpty() && completed.first().longValue() == watermark) {
+                completed.remove(completed.first());
+                watermark++;
+            }
+            
+            if (watermark - saved >= interval) {
+                save();
+            }
+        }
+        
+        synchronized void save() {
+            if (checkpoint == null || watermark == saved) return;
+            try {
+                checkpoint.save(watermark);
+                saved = watermark;
+            } catch (IOException e) {
+                LOG.error("Unable to save progress " + watermark + " to " + checkpoint, e);
+            }
+        }
+        
+        synchronized MergeResult toResult(long skipped) {
+            return new MergeResult(skipped, sent, failed);
+        }
+        
+    }
+    
+}
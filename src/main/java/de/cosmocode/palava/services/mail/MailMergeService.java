@@ -0,0 +1,52 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Sends one template to a potentially huge number of recipients, which are
+ * consumed lazily and rendered in parallel.
+ *
+ * @author Willi Schoenborn
+ */
+public interface MailMergeService {
+
+    /**
+     * Sends the specified template once for every parameter map. Recipients are read
+     * only as fast as messages are rendered and delivered, so memory usage does not
+     * depend on the number of recipients. Failures for single recipients are logged
+     * and counted, but do not abort the merge.
+     * 
+     * <p>
+     *   Progress is saved to the given checkpoint regularly. Calling this method again
+     *   with the same checkpoint and an iterator over the same recipients skips all
+     *   recipients which have already been processed.
+     * </p>
+     * 
+     * @param templateName the template name
+     * @param lang the language
+     * @param recipients the template parameters for every single message
+     * @param checkpoint the checkpoint used to save and resume progress, may be null
+     * @return the number of sent, failed and skipped messages
+     * @throws Exception if the template could not be loaded or the checkpoint could not be read
+     */
+    MergeResult merge(String templateName, String lang, Iterator<? extends Map<String, ?>> recipients, 
+        MergeCheckpoint checkpoint) throws Exception;
+    
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Renders messages without sending them, e.g. to deliver them from another
+ * tier or to cache previews.
+ *
+ * @author Willi Schoenborn
+ */
+public interface MailRenderService {
+
+    /**
+     * Renders the specified template into a complete message, exactly like it would be sent.
+     * 
+     * @param templateName the template name
+     * @param lang the language
+     * @param params the template parameters
+     * @param to additional recipients
+     * @return the rendered message
+     * @throws Exception if rendering failed
+     */
+    MimeMessage renderMessage(String templateName, String lang, Map<String, ?> params, String... to) 
+        throws Exception;
+    
+    /**
+     * Renders the specified template and writes the message in RFC 822 format to the
+     * given stream. The message is streamed part by part, it is never copied into a
+     * single buffer. The stream is neither buffered nor closed.
+     * 
+     * @param templateName the template name
+     * @param lang the language
+     * @param params the template parameters
+     * @param output the target stream
+     * @throws Exception if rendering or writing failed
+     */
+    void writeMessage(String templateName, String lang, Map<String, ?> params, OutputStream output) 
+        throws Exception;
+    
+    /**
+     * Renders the specified template and writes the message in RFC 822 format to the
+     * given channel, like {@link #writeMessage(String, String, Map, OutputStream)}.
+     * The channel is not closed.
+     * 
+     * @param templateName the template name
+     * @param lang the language
+     * @param params the template parameters
+     * @param channel the target channel
+     * @throws Exception if rendering or writing failed
+     */
+    void writeMessage(String templateName, String lang, Map<String, ?> params, WritableByteChannel channel) 
+        throws Exception;
+    
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.IOException;
+
+/**
+ * Persists the progress of a {@link MailMergeService#merge(String, String, java.util.Iterator, MergeCheckpoint)}.
+ * Progress is the number of leading recipients which have been processed completely.
+ *
+ * @author Willi Schoenborn
+ */
+public interface MergeCheckpoint {
+
+    /**
+     * Loads the saved progress.
+     * 
+     * @return the number of recipients to skip, 0 if nothing has been saved yet
+     * @throws IOException if loading failed
+     */
+    long load() throws IOException;
+    
+    /**
+     * Saves the progress.
+     * 
+     * @param processed the number of leading recipients which have been processed
+     * @throws IOException if saving failed
+     */
+    void save(long processed) throws IOException;
+    
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+/**
+ * The outcome of a {@link MailMergeService#merge(String, String, java.util.Iterator, MergeCheckpoint)} call.
+ *
+ * @author Willi Schoenborn
+ */
+public final class MergeResult {
+
+    private final long skipped;
+    
+    private final long sent;
+    
+    private final long failed;
+    
+    MergeResult(long skipped, long sent, long failed) {
+        this.skipped = skipped;
+        this.sent = sent;
+        this.failed = failed;
+    }
+    
+    /**
+     * Provides the number of recipients skipped because a previous run already processed them.
+     * 
+     * @return the number of skipped recipients
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+    
+    /**
+     * Provides the number of successfully sent messages.
+     * 
+     * @return the number of sent messages
+     */
+    public long getSent() {
+        return sent;
+    }
+    
+    /**
+     * Provides the number of messages which could not be rendered or sent.
+     * 
+     * @return the number of failures
+     */
+    public long getFailed() {
+        return failed;
+    }
+    
+    @Override
+    public String toString() {
+        return "MergeResult [skipped=" + skipped + ", sent=" + sent + ", failed=" + failed + "]";
+    }
+    
+}
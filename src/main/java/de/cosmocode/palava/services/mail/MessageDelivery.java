@@ -0,0 +1,42 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Delivers fully built messages to a mail relay.
+ *
+ * @author Willi Schoenborn
+ */
+interface MessageDelivery {
+
+    /**
+     * Delivers the given message to all of its recipients.
+     * 
+     * @param message the message
+     * @throws MessagingException if delivery failed
+     */
+    void deliver(MimeMessage message) throws MessagingException;
+    
+    /**
+     * Releases all resources held by this delivery.
+     */
+    void close();
+    
+}
@@ -0,0 +1,670 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * A {@link MessageDelivery} which spools messages to disk and delivers them
+ * to the target delivery in the background.
+ *
+ * <p>
+ *   Messages are appended as RFC 822 records (length, crc32, bytes) to numbered segment
+ *   files. A single thread reads the segments in order and hands the records to a pool
+ *   of delivery threads, usually one per connection of the target delivery. The ack file
+ *   next to every segment stores the offset up to which all records have been delivered;
+ *   records delivered out of order are acknowledged once all of their predecessors are.
+ *   With more than one delivery thread, messages may be delivered out of order. Failed
+ *   deliveries, including recipients deferred with a 4xx reply, are retried with exponential
+ *   backoff; messages failing too often or whose recipients have been rejected permanently
+ *   are moved to the {@code failed} sub directory.
+ *   Segments are deleted once all of their messages have been delivered.
+ * </p>
+ *
+ * <p>
+ *   At most eight records per delivery thread are read ahead of
+ *   the oldest unacknowledged record. A record waiting for a retry therefore stops the
+ *   outbox from reading further once the window is full, until it has been delivered
+ *   or parked.
+ * </p>
+ *
+ * <p>
+ *   After a crash, delivery resumes at the last acknowledged offset. Messages delivered
+ *   behind an unacknowledged one, at most eight per delivery thread,
+ *   may therefore be delivered twice, but none is lost. Torn records at the end of a
+ *   segment are detected by their checksum and skipped.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class Outbox implements MessageDelivery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Outbox.class);
+    
+    private static final String SEGMENT = ".spool";
+    
+    private static final String ACK = ".ack";
+    
+    // record length + crc32
+    private static final int HEADER = 4 + 8;
+    
+    // upper bound of the retry delay, relative to the initial delay
+    private static final int MAX_BACKOFF = 64;
+    
+    // records read but not yet acknowledged, per delivery thread
+    private static final int WINDOW_PER_THREAD = 8;
+    
+    private final File directory;
+    
+    private final File failed;
+    
+    private final Session session;
+    
+    private final MessageDelivery target;
+    
+    private final long segmentSize;
+    
+    private final boolean sync;
+    
+    private final int maxAttempts;
+    
+    private final long retryDelay;
+    
+    private final Thread drainer;
+    
+    private final ThreadPoolExecutor workers;
+    
+    private final Semaphore window;
+    
+    private final Set<Acknowledgement> pending = Sets.newHashSet();
+    
+    private final Object lock = new Object();
+    
+    // guarded by lock
+    private long writeSegment;
+    
+    private FileChannel writer;
+    
+    private long writePosition;
+    
+    private boolean closed;
+    
+    Outbox(File directory, Session session, MessageDelivery target, int threads, long segmentSize, boolean sync, 
+        int maxAttempts, long retryDelay, TimeUnit retryDelayUnit) throws IOException {
+        this.directory = Preconditions.checkNotNull(directory, "Directory");
+        this.failed = new File(directory, "failed");
+        this.session = Preconditions.checkNotNull(session, "Session");
+        this.target = Preconditions.checkNotNull(target, "Target");
+        Preconditions.checkArgument(threads > 0, "Threads must be positive");
+        Preconditions.checkArgument(segmentSize > 0, "SegmentSize must be positive");
+        Preconditions.checkArgument(maxAttempts > 0, "MaxAttempts must be positive");
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = Preconditions.checkNotNull(retryDelayUnit, "RetryDelayUnit").toMillis(retryDelay);
+        
+        if (!failed.isDirectory() && !failed.mkdirs()) {
+            throw new IOException("Unable to create " + failed);
+        }
+        
+        final long[] segments = segments();
+        final long first;
+        if (segments.length == 0) {
+            first = 0L;
+            writeSegment = 0L;
+        } else {
+            first = segments[0];
+            // never append to a segment which may end with a torn record
+            writeSegment = segments[segments.length - 1] + 1;
+            LOG.info("Resuming delivery of {} spooled segments in {}", segments.length, directory);
+        }
+        writer = open(writeSegment);
+        
+        window = new Semaphore(threads * WINDOW_PER_THREAD);
+        
+        // the queue bounds the number of records held in memory
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, 
+            new ArrayBlockingQueue<Runnable>(threads), new ThreadFactory() {
+                
+                private final AtomicInteger count = new AtomicInteger();
+                
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "velocity-mail-outbox-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+                
+            }, new BlockingPolicy());
+        
+        drainer = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                drainFrom(first);
+            }
+            
+        }, "velocity-mail-outbox");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+    
+    private long[] segments() {
+        final String[] names = directory.list(new FilenameFilter() {
+            
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT);
+            }
+            
+        });
+        final long[] segments = new long[names == null ? 0 : names.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = Long.parseLong(names[i].substring(0, names[i].length() - SEGMENT.length()));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+    
+    private File segmentOf(long segment) {
+        return new File(directory, String.format("%020d", segment) + SEGMENT);
+    }
+    
+    private File ackOf(long segment) {
+        return new File(directory, String.format("%020d", segment) + ACK);
+    }
+    
+    private FileChannel open(long segment) throws IOException {
+        final FileChannel channel = new RandomAccessFile(segmentOf(segment), "rw").getChannel();
+        channel.position(channel.size());
+        return channel;
+    }
+    
+    @Override
+    public void deliver(MimeMessage message) throws MessagingException {
+        message.saveChanges();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            message.writeTo(bytes);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to serialize message", e);
+        }
+        final byte[] data = bytes.toByteArray();
+        
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(data.length).putLong(crc.getValue()).flip();
+        final ByteBuffer[] record = {header, ByteBuffer.wrap(data)};
+        final long length = HEADER + data.length;
+        
+        synchronized (lock) {
+            if (closed) throw new MessagingException("Outbox has been closed");
+            try {
+                if (writePosition > 0 && writePosition + length > segmentSize) {
+                    roll();
+                }
+                long remaining = length;
+                while (remaining > 0) {
+                    remaining -= writer.write(record);
+                }
+                if (sync) {
+                    writer.force(false);
+                }
+                writePosition += length;
+            } catch (IOException e) {
+                discardPartial();
+                throw new MessagingException("Unable to spool message", e);
+            }
+            lock.notifyAll();
+        }
+    }
+    
+    private void roll() throws IOException {
+        writer.close();
+        writer = open(writeSegment + 1);
+        writeSegment++;
+        writePosition = 0L;
+    }
+    
+    private void discardPartial() {
+        try {
+            writer.truncate(writePosition);
+            writer.position(writePosition);
+        } catch (IOException e) {
+            LOG.error("Unable to discard partially spooled message in " + segmentOf(writeSegment), e);
+        }
+    }
+    
+    private void drainFrom(long first) {
+        try {
+            for (long segment = first; !Thread.currentThread().isInterrupted(); segment++) {
+                if (isCompacted(segment)) continue;
+                if (!drain(segment)) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Checks whether the given segment has already been deleted. Segments are deleted
+     * as soon as all of their messages have been delivered, which may happen before
+     * a preceding segment is complete, so the segments found after a restart can have gaps.
+     * 
+     * @return true if the segment will never be written and no longer exists
+     */
+    private boolean isCompacted(long segment) {
+        synchronized (lock) {
+            return segment < writeSegment && !segmentOf(segment).exists();
+        }
+    }
+    
+    /**
+     * Hands all messages of the given segment to the delivery threads. The segment
+     * is deleted once its last message has been delivered.
+     * 
+     * @return true if the segment has been read completely, false if the outbox has been closed
+     */
+    private boolean drain(long segment) throws InterruptedException {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(segmentOf(segment), "r");
+            final FileChannel reader = file.getChannel();
+            final Acknowledgement ack = new Acknowledgement(segment);
+            long position = ack.position();
+            
+            final ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (true) {
+                final long limit = awaitLimit(segment, position);
+                if (limit < 0) return false;
+                final long end = Math.min(limit, reader.size());
+                if (position >= end) {
+                    closeQuietly(file);
+                    ack.seal(position);
+                    return true;
+                }
+                
+                header.clear();
+                if (end - position < HEADER || read(reader, header, position) < HEADER) {
+                    LOG.warn("Skipping torn record at {} of {}", position, segmentOf(segment));
+                    closeQuietly(file);
+                    return seal(ack, position);
+                }
+                header.flip();
+                final int length = header.getInt();
+                final long checksum = header.getLong();
+                
+                final boolean complete = length >= 0 && end - position - HEADER >= length;
+                final ByteBuffer data = ByteBuffer.allocate(complete ? length : 0);
+                final CRC32 crc = new CRC32();
+                if (!complete || read(reader, data, position + HEADER) < length || 
+                    !matches(crc, data.array(), checksum)) {
+                    LOG.warn("Skipping torn record at {} of {}", position, segmentOf(segment));
+                    closeQuietly(file);
+                    return seal(ack, position);
+                }
+                
+                final long next = position + HEADER + length;
+                // released once the record has been acknowledged
+                window.acquire();
+                submit(data.array(), ack, position, next);
+                position = next;
+            }
+        } catch (RejectedExecutionException e) {
+            // closed while waiting for a free delivery thread
+            return false;
+        } catch (IOException e) {
+            LOG.error("Unable to read " + segmentOf(segment) + ", delivery stopped", e);
+            return false;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+    
+    private boolean seal(Acknowledgement ack, long position) {
+        if (!retire(ack.segment)) return false;
+        ack.seal(position);
+        return true;
+    }
+    
+    private void submit(final byte[] data, final Acknowledgement ack, final long position, final long next) {
+        workers.execute(new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    send(data, ack.segment, position);
+                    ack.completed(position, next);
+                } catch (InterruptedException e) {
+                    // closed while waiting for a retry, the message is delivered after the next start
+                    Thread.currentThread().interrupt();
+                }
+            }
+            
+        });
+    }
+    
+    /**
+     * Makes sure the given segment is not written anymore.
+     * 
+     * @return true if the segment can be deleted, false otherwise
+     */
+    private boolean retire(long segment) {
+        synchronized (lock) {
+            if (segment < writeSegment) return true;
+            try {
+                roll();
+                return true;
+            } catch (IOException e) {
+                LOG.error("Unable to roll over corrupt segment " + segmentOf(segment) + ", delivery stopped", e);
+                return false;
+            }
+        }
+    }
+    
+    private boolean matches(CRC32 crc, byte[] data, long checksum) {
+        crc.update(data);
+        return crc.getValue() == checksum;
+    }
+    
+    private int read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position + total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+    
+    /**
+     * Waits until the given segment contains data behind position.
+     * 
+     * @return the readable limit of the segment, {@link Long#MAX_VALUE} if it is complete
+     *         or -1 if the outbox has been closed
+     */
+    private long awaitLimit(long segment, long position) throws InterruptedException {
+        synchronized (lock) {
+            while (!closed && segment == writeSegment && writePosition <= position) {
+                lock.wait();
+            }
+            if (closed) return -1L;
+            return segment < writeSegment ? Long.MAX_VALUE : writePosition;
+        }
+    }
+    
+    private void send(byte[] data, long segment, long position) throws InterruptedException {
+        long delay = retryDelay;
+        for (int attempt = 1;; attempt++) {
+            try {
+                target.deliver(new SpooledMessage(session, data));
+                return;
+            } catch (MessagingException e) {
+                if (e instanceof SendFailedException && isPermanent((SendFailedException) e)) {
+                    // rejected recipients will be rejected again
+                    LOG.error("Recipients of spooled message at " + position + " of " + segmentOf(segment) + 
+                        " have been rejected", e);
+                    park(data, segment, position);
+                    return;
+                } else if (attempt >= maxAttempts) {
+                    LOG.error("Giving up on spooled message at " + position + " of " + segmentOf(segment), e);
+                    park(data, segment, position);
+                    return;
+                }
+                LOG.warn("Unable to deliver spooled message, retrying in " + delay + "ms", e);
+            /*CHECKSTYLE:OFF*/
+            } catch (RuntimeException e) {
+            /*CHECKSTYLE:ON*/
+                // a bug in the target, retrying won't help; the record must complete either way
+                LOG.error("Unexpected failure delivering spooled message at " + position + " of " + 
+                    segmentOf(segment), e);
+                park(data, segment, position);
+                return;
+            }
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, retryDelay * MAX_BACKOFF);
+        }
+    }
+    
+    /**
+     * Checks whether the given rejection is permanent. Recipients which have only been
+     * deferred by a 4xx reply, e.g. because of greylisting or a full mailbox, and messages
+     * which left valid recipients unsent are worth another attempt.
+     * 
+     * @param e the rejection
+     * @return true if retrying will be rejected again, false otherwise
+     */
+    static boolean isPermanent(SendFailedException e) {
+        final Address[] unsent = e.getValidUnsentAddresses();
+        if (unsent != null && unsent.length > 0) return false;
+        Exception current = e;
+        while (current != null) {
+            final int code;
+            if (current instanceof SMTPAddressFailedException) {
+                code = SMTPAddressFailedException.class.cast(current).getReturnCode();
+            } else if (current instanceof SMTPSendFailedException) {
+                code = SMTPSendFailedException.class.cast(current).getReturnCode();
+            } else {
+                code = 0;
+            }
+            if (code >= 400 && code < 500) return false;
+            current = current instanceof MessagingException ? 
+                MessagingException.class.cast(current).getNextException() : null;
+        }
+        return true;
+    }
+    
+    private void park(byte[] data, long segment, long position) {
+        final File file = new File(failed, String.format("%020d-%d.eml", segment, position));
+        try {
+            Files.write(data, file);
+        } catch (IOException e) {
+            LOG.error("Unable to write undeliverable message to " + file + ", dropping it", e);
+        }
+    }
+    
+    private void compact(long segment) {
+        if (!segmentOf(segment).delete() || !ackOf(segment).delete()) {
+            LOG.warn("Unable to delete delivered segment {}", segmentOf(segment));
+        }
+    }
+    
+    private void closeQuietly(RandomAccessFile file) {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close spool file", e);
+        }
+    }
+    
+    /**
+     * Stops the background delivery. Undelivered messages stay in the spool
+     * and are delivered after the next start.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            lock.notifyAll();
+        }
+        drainer.interrupt();
+        // messages being sent are completed, queued and retried ones stay in the spool
+        workers.shutdownNow();
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(10));
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (pending) {
+            for (Acknowledgement ack : pending) {
+                ack.close();
+            }
+            pending.clear();
+        }
+        synchronized (lock) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close " + segmentOf(writeSegment), e);
+            }
+        }
+        target.close();
+    }
+    
+    /**
+     * The ack file of a segment. Tracks the offset up to which all records of
+     * the segment have been delivered. Only records completed out of order are
+     * kept, which are bounded by the read ahead window.
+     *
+     * @author Willi Schoenborn
+     */
+    private final class Acknowledgement {
+        
+        private final long segment;
+        
+        private final RandomAccessFile file;
+        
+        // the offset of the following record, indexed by the offset of a delivered record
+        private final Map<Long, Long> completed = Maps.newHashMap();
+        
+        private long watermark;
+        
+        private long end = -1L;
+        
+        private boolean finished;
+        
+        Acknowledgement(long segment) throws IOException {
+            this.segment = segment;
+            this.file = new RandomAccessFile(ackOf(segment), "rw");
+            this.watermark = file.length() < 8 ? 0L : file.readLong();
+            synchronized (pending) {
+                pending.add(this);
+            }
+        }
+        
+        synchronized long position() {
+            return watermark;
+        }
+        
+        synchronized void completed(long position, long next) {
+            completed.put(position, next);
+            final long previous = watermark;
+            Long following;
+            int acknowledged = 0;
+            while ((following = completed.remove(watermark)) != null) {
+                watermark = following.longValue();
+                acknowledged++;
+            }
+            window.release(acknowledged);
+            if (watermark != previous) {
+                try {
+                    file.seek(0L);
+                    file.writeLong(watermark);
+                    if (sync) {
+                        file.getChannel().force(false);
+                    }
+                } catch (IOException e) {
+                    LOG.error("Unable to acknowledge " + watermark + " of " + segmentOf(segment), e);
+                }
+            }
+            finishIfDelivered();
+        }
+        
+        /**
+         * Marks the given position as the end of the segment, no more records will follow.
+         */
+        synchronized void seal(long position) {
+            end = position;
+            finishIfDelivered();
+        }
+        
+        private void finishIfDelivered() {
+            if (finished || end < 0 || watermark < end) return;
+            finished = true;
+            close();
+            synchronized (pending) {
+                pending.remove(this);
+            }
+            compact(segment);
+        }
+        
+        void close() {
+            closeQuietly(file);
+        }
+        
+    }
+    
+    /**
+     * A message read back from the spool, which keeps its original message id
+     * so relays and recipients can detect duplicates after a crash.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class SpooledMessage extends MimeMessage {
+        
+        SpooledMessage(Session session, byte[] data) throws MessagingException {
+            super(session, new ByteArrayInputStream(data));
+        }
+        
+        @Override
+        protected void updateMessageID() throws MessagingException {
+            if (getHeader("Message-ID") == null) {
+                super.updateMessageID();
+            }
+        }
+        
+    }
+    
+}
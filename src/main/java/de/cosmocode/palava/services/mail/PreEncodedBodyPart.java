@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+import javax.mail.Header;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+
+/**
+ * A {@link MimeBodyPart} whose content has already been base64 encoded.
+ * The encoded bytes are written as they are, readers of the part still
+ * get the decoded content through the original data handler.
+ *
+ * @author Willi Schoenborn
+ */
+final class PreEncodedBodyPart extends MimeBodyPart {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    
+    private static final String ENCODING = "ISO-8859-1";
+    
+    private final byte[] encoded;
+    
+    /**
+     * Creates a copy of the given part which writes the given encoded content.
+     * 
+     * @param part the original part
+     * @param encoded the base64 encoded content of the part, wrapped into lines
+     * @throws MessagingException if copying the part failed
+     */
+    PreEncodedBodyPart(MimeBodyPart part, byte[] encoded) throws MessagingException {
+        this.encoded = encoded;
+        setDataHandler(part.getDataHandler());
+        
+        final Enumeration<?> headers = part.getAllHeaders();
+        while (headers.hasMoreElements()) {
+            final Header header = (Header) headers.nextElement();
+            addHeader(header.getName(), header.getValue());
+        }
+        
+        // prevents javamail from choosing an encoding, which requires reading the content
+        setHeader("Content-Transfer-Encoding", "base64");
+    }
+    
+    @Override
+    public void writeTo(OutputStream os) throws IOException, MessagingException {
+        final Enumeration<?> lines = getAllHeaderLines();
+        while (lines.hasMoreElements()) {
+            os.write(lines.nextElement().toString().getBytes(ENCODING));
+            os.write(CRLF);
+        }
+        os.write(CRLF);
+        os.write(encoded);
+        os.flush();
+    }
+    
+}
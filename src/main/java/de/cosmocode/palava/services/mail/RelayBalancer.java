@@ -0,0 +1,248 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import de.cosmocode.palava.mail.templating.velocity.PipelineStatistics;
+import de.cosmocode.palava.mail.templating.velocity.Stage;
+
+/**
+ * A {@link MessageDelivery} which distributes messages over multiple relays.
+ *
+ * <p>
+ *   A relay failing {@code maxFailures} times in a row is considered down and skipped
+ *   for {@code retryAfter}. Afterwards it gets another chance; the first success marks it
+ *   healthy again. A message which failed on one relay is retried on all other relays.
+ *   Rejected recipients ({@link SendFailedException}) are not retried, as every relay
+ *   would reject them. If all relays are down, all of them are tried anyway.
+ * </p>
+ *
+ * <p>
+ *   Latencies and counts are recorded per relay as {@link Stage#RELAY} with the
+ *   relay name as key. The outcome of the whole delivery, including fail over, is
+ *   recorded by the caller as {@link Stage#SEND}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class RelayBalancer implements MessageDelivery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayBalancer.class);
+    
+    private static final Comparator<Relay> BY_OUTSTANDING = new Comparator<Relay>() {
+        
+        @Override
+        public int compare(Relay left, Relay right) {
+            final int l = left.outstanding.get();
+            final int r = right.outstanding.get();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+        
+    };
+    
+    private final List<Relay> relays;
+    
+    private final Routing routing;
+    
+    private final int maxFailures;
+    
+    private final long retryAfter;
+    
+    private final PipelineStatistics statistics;
+    
+    // relay indices in smooth weighted round robin order
+    private final int[] schedule;
+    
+    private final AtomicInteger next = new AtomicInteger();
+    
+    RelayBalancer(List<Relay> relays, Routing routing, int maxFailures, long retryAfter, TimeUnit retryAfterUnit,
+        PipelineStatistics statistics) {
+        Preconditions.checkArgument(!relays.isEmpty(), "Relays must not be empty");
+        Preconditions.checkArgument(maxFailures > 0, "MaxFailures must be positive");
+        this.relays = ImmutableList.copyOf(relays);
+        this.routing = Preconditions.checkNotNull(routing, "Routing");
+        this.maxFailures = maxFailures;
+        this.retryAfter = Preconditions.checkNotNull(retryAfterUnit, "RetryAfterUnit").toMillis(retryAfter);
+        this.statistics = Preconditions.checkNotNull(statistics, "Statistics");
+        this.schedule = scheduleOf(this.relays);
+    }
+    
+    private static int[] scheduleOf(List<Relay> relays) {
+        int total = 0;
+        for (Relay relay : relays) {
+            total += relay.weight;
+        }
+        final int[] current = new int[relays.size()];
+        final int[] schedule = new int[total];
+        for (int i = 0; i < total; i++) {
+            int best = 0;
+            for (int j = 0; j < current.length; j++) {
+                current[j] += relays.get(j).weight;
+                if (current[j] > current[best]) best = j;
+            }
+            current[best] -= total;
+            schedule[i] = best;
+        }
+        return schedule;
+    }
+    
+    @Override
+    public void deliver(MimeMessage message) throws MessagingException {
+        final List<Relay> candidates = candidates();
+        final long now = System.currentTimeMillis();
+        
+        MessagingException last = null;
+        boolean tried = false;
+        for (Relay relay : candidates) {
+            if (!relay.isAvailable(now)) continue;
+            tried = true;
+            try {
+                send(relay, message);
+                return;
+            } catch (SendFailedException e) {
+                throw e;
+            } catch (MessagingException e) {
+                LOG.warn("Unable to send message using relay " + relay + ", failing over", e);
+                last = e;
+            }
+        }
+        
+        if (!tried) {
+            LOG.warn("All relays are down, trying all of them");
+            for (Relay relay : candidates) {
+                try {
+                    send(relay, message);
+                    return;
+                } catch (SendFailedException e) {
+                    throw e;
+                } catch (MessagingException e) {
+                    last = e;
+                }
+            }
+        }
+        
+        throw last;
+    }
+    
+    private List<Relay> candidates() {
+        final int start = schedule[(next.getAndIncrement() & Integer.MAX_VALUE) % schedule.length];
+        final List<Relay> candidates = Lists.newArrayListWithCapacity(relays.size());
+        candidates.addAll(relays.subList(start, relays.size()));
+        candidates.addAll(relays.subList(0, start));
+        if (routing == Routing.LEAST_OUTSTANDING) {
+            // stable, so the rotation above breaks ties
+            Collections.sort(candidates, BY_OUTSTANDING);
+        }
+        return candidates;
+    }
+    
+    private void send(Relay relay, MimeMessage message) throws MessagingException {
+        relay.outstanding.incrementAndGet();
+        final long start = statistics.start();
+        try {
+            relay.delivery.deliver(message);
+            statistics.record(Stage.RELAY, relay.name, start);
+            relay.succeeded();
+        } catch (SendFailedException e) {
+            // the relay works, the recipients don't
+            relay.succeeded();
+            throw e;
+        } catch (MessagingException e) {
+            statistics.failed(Stage.RELAY);
+            relay.failed(maxFailures, retryAfter);
+            throw e;
+        } finally {
+            relay.outstanding.decrementAndGet();
+        }
+    }
+    
+    @Override
+    public void close() {
+        for (Relay relay : relays) {
+            relay.delivery.close();
+        }
+    }
+    
+    /**
+     * A single relay, its delivery and its health.
+     *
+     * @author Willi Schoenborn
+     */
+    static final class Relay {
+        
+        private final String name;
+        
+        private final int weight;
+        
+        private final MessageDelivery delivery;
+        
+        private final AtomicInteger outstanding = new AtomicInteger();
+        
+        private final AtomicInteger failures = new AtomicInteger();
+        
+        private volatile long downUntil;
+        
+        Relay(String name, int weight, MessageDelivery delivery) {
+            Preconditions.checkArgument(weight > 0, "Weight must be positive");
+            this.name = Preconditions.checkNotNull(name, "Name");
+            this.weight = weight;
+            this.delivery = Preconditions.checkNotNull(delivery, "Delivery");
+        }
+        
+        boolean isAvailable(long now) {
+            return downUntil <= now;
+        }
+        
+        void succeeded() {
+            failures.set(0);
+            if (downUntil != 0L) {
+                downUntil = 0L;
+                LOG.info("Relay {} is up again", name);
+            }
+        }
+        
+        void failed(int maxFailures, long retryAfter) {
+            if (failures.incrementAndGet() >= maxFailures) {
+                downUntil = System.currentTimeMillis() + retryAfter;
+                LOG.warn("Relay {} failed {} times in a row, marking it down", name, failures.get());
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return name;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.CharArrayReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * An unsynchronized, growing character buffer used as merge target.
+ * Unlike {@link java.io.StringWriter} the rendered output can be read
+ * back without copying it into a string first.
+ *
+ * @author Willi Schoenborn
+ */
+final class RenderBuffer extends Writer {
+
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private char[] buffer;
+    private int count;
+
+    public RenderBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RenderBuffer(int capacity) {
+        this.buffer = new char[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, capacity));
+        }
+    }
+
+    @Override
+    public void write(int c) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        ensureCapacity(count + length);
+        System.arraycopy(chars, offset, buffer, count, length);
+        count += length;
+    }
+
+    @Override
+    public void write(String s, int offset, int length) {
+        ensureCapacity(count + length);
+        s.getChars(offset, offset + length, buffer, count);
+        count += length;
+    }
+
+    @Override
+    public void flush() {
+        
+    }
+
+    @Override
+    public void close() {
+        
+    }
+
+    /**
+     * Provides a reader on the current content of this buffer. The reader
+     * shares the underlying array, it must not be used after further writes.
+     *
+     * @return a new reader
+     */
+    public Reader getReader() {
+        return new CharArrayReader(buffer, 0, count);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count);
+    }
+
+}
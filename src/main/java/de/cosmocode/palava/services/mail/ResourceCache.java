@@ -0,0 +1,354 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.activation.FileTypeMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+import de.cosmocode.palava.mail.templating.velocity.CacheStatistics;
+import de.cosmocode.palava.mail.templating.velocity.PipelineStatistics;
+import de.cosmocode.palava.mail.templating.velocity.Stage;
+
+/**
+ * A size bounded, thread safe cache of embedded and attached files, keyed by
+ * their resolved path. Entries are held either on the heap or as read-only
+ * memory mapped buffers and get reloaded once the modification time or size
+ * of the underlying file changes. The file is checked at most once per check
+ * interval, so repeated sends of the same resources do no file system io.
+ *
+ * @author Willi Schoenborn
+ */
+final class ResourceCache implements CacheStatistics {
+
+    private static final int MAXIMUM_MISSING = 1024;
+    
+    private final long maximumSize;
+    
+    private final boolean mapped;
+    
+    private final long checkInterval;
+    
+    private final Map<File, Entry> entries = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+    
+    // files which did not exist, mapped to the time they were checked
+    private final Map<File, Long> missing = new LinkedHashMap<File, Long>(16, 0.75f, true) {
+        
+        private static final long serialVersionUID = -1870496236585307123L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Long> eldest) {
+            return size() > MAXIMUM_MISSING;
+        }
+        
+    };
+    
+    private long size;
+    
+    private final AtomicLong hits = new AtomicLong();
+    
+    private final AtomicLong misses = new AtomicLong();
+    
+    private final PipelineStatistics statistics;
+    
+    /**
+     * Creates a new cache.
+     * 
+     * @param maximumSize the maximum number of cached bytes
+     * @param mapped whether files should be memory mapped instead of copied into the heap
+     * @param checkInterval the interval in which cached files are checked for modifications
+     * @param checkIntervalUnit the unit of checkInterval
+     * @param statistics the statistics used to record load times
+     */
+    ResourceCache(long maximumSize, boolean mapped, long checkInterval, TimeUnit checkIntervalUnit, 
+        PipelineStatistics statistics) {
+        Preconditions.checkArgument(maximumSize >= 0, "MaximumSize must not be negative");
+        Preconditions.checkArgument(checkInterval >= 0, "CheckInterval must not be negative");
+        this.maximumSize = maximumSize;
+        this.mapped = mapped;
+        this.checkInterval = Preconditions.checkNotNull(checkIntervalUnit, "CheckIntervalUnit").toMillis(checkInterval);
+        this.statistics = Preconditions.checkNotNull(statistics, "Statistics");
+    }
+    
+    /**
+     * Provides a data source for the given file, loading it into the cache if necessary.
+     * Files which exceed the maximum size are not cached.
+     * 
+     * @param file the file
+     * @return the data source or null if the file does not exist
+     * @throws IOException if reading the file failed
+     */
+    DataSource get(File file) throws IOException {
+        final File key = file.getAbsoluteFile();
+        final long now = System.currentTimeMillis();
+        
+        final Entry cached;
+        synchronized (this) {
+            cached = entries.get(key);
+            if (cached == null) {
+                final Long checked = missing.get(key);
+                if (checked != null && now - checked.longValue() < checkInterval) {
+                    hits.incrementAndGet();
+                    return null;
+                }
+            }
+        }
+        
+        if (cached != null) {
+            if (now - cached.checked < checkInterval) {
+                hits.incrementAndGet();
+                return cached;
+            } else if (cached.lastModified == key.lastModified() && cached.length == key.length()) {
+                cached.checked = now;
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        
+        misses.incrementAndGet();
+        if (!key.exists()) {
+            synchronized (this) {
+                remove(key);
+                missing.put(key, now);
+            }
+            return null;
+        }
+        
+        final long lastModified = key.lastModified();
+        final long length = key.length();
+        
+        if (length > maximumSize) {
+            remove(key);
+            return new FileDataSource(key);
+        }
+        
+        final long start = statistics.start();
+        final Entry entry;
+        try {
+            entry = new Entry(key, load(key), lastModified, now);
+        } catch (IOException e) {
+            statistics.failed(Stage.ATTACHMENTS);
+            throw e;
+        }
+        statistics.record(Stage.ATTACHMENTS, key.getName(), start);
+        put(entry);
+        return entry;
+    }
+    
+    private ByteBuffer load(File file) throws IOException {
+        if (mapped) {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = raf.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        } else {
+            return ByteBuffer.wrap(Files.toByteArray(file));
+        }
+    }
+    
+    private synchronized void put(Entry entry) {
+        missing.remove(entry.file);
+        final Entry previous = entries.put(entry.file, entry);
+        if (previous != null) {
+            size -= previous.length;
+        }
+        size += entry.length;
+        
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maximumSize && iterator.hasNext()) {
+            final Entry eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.length;
+        }
+    }
+    
+    private synchronized void remove(File file) {
+        final Entry previous = entries.remove(file);
+        if (previous != null) {
+            size -= previous.length;
+        }
+    }
+    
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+    
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * Provides the ratio of lookups which have been served from the cache.
+     * 
+     * @return the hit rate, between 0 and 1
+     */
+    double getHitRate() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return total == 0 ? 0d : (double) h / total;
+    }
+    
+    synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * A cached file which is also a data source of its content.
+     *
+     * @author Willi Schoenborn
+     */
+    static final class Entry implements DataSource {
+        
+        private final File file;
+        
+        private final ByteBuffer content;
+        
+        private final long lastModified;
+        
+        private final long length;
+        
+        private final String contentType;
+        
+        private volatile long checked;
+        
+        private volatile String digest;
+        
+        private Entry(File file, ByteBuffer content, long lastModified, long checked) {
+            this.file = file;
+            this.content = content;
+            this.lastModified = lastModified;
+            this.length = content.remaining();
+            this.contentType = FileTypeMap.getDefaultFileTypeMap().getContentType(file);
+            this.checked = checked;
+        }
+        
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+        
+        /**
+         * Provides the hex encoded sha-1 digest of this entry's content.
+         * The digest is computed on first access.
+         * 
+         * @return the content digest
+         */
+        String getDigest() {
+            if (digest == null) {
+                final MessageDigest sha;
+                try {
+                    sha = MessageDigest.getInstance("SHA-1");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+                sha.update(content.duplicate());
+                final StringBuilder hex = new StringBuilder(40);
+                for (byte b : sha.digest()) {
+                    hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    hex.append(Character.forDigit(b & 0xF, 16));
+                }
+                digest = hex.toString();
+            }
+            return digest;
+        }
+        
+        long getLength() {
+            return length;
+        }
+        
+        @Override
+        public InputStream getInputStream() {
+            return new ByteBufferInputStream(content.duplicate());
+        }
+        
+        @Override
+        public String getName() {
+            return file.getName();
+        }
+        
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Cached resources are read-only");
+        }
+        
+    }
+    
+    /**
+     * An input stream reading a private view of a byte buffer.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        
+        private final ByteBuffer buffer;
+        
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+        
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+        
+        @Override
+        public long skip(long n) {
+            final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+/**
+ * Defines how messages are distributed over multiple relays.
+ *
+ * @author Willi Schoenborn
+ */
+public enum Routing {
+
+    /**
+     * Relays take turns, proportionally to their weight.
+     */
+    WEIGHTED_ROUND_ROBIN,
+    
+    /**
+     * Every message goes to the relay with the fewest messages in flight.
+     */
+    LEAST_OUTSTANDING;
+    
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.exception.ResourceNotFoundException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Resolves a template name and language to the resource name of the most
+ * specific existing template, falling back from e.g. {@code de_AT/name}
+ * to {@code de/name} and finally {@code name}.
+ *
+ * <p>
+ *   Resolutions are cached per template and language, including misses,
+ *   for the configured timeout. Repeated lookups of missing localizations
+ *   therefore neither probe the file system nor throw exceptions internally.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class TemplateResolver {
+
+    private final ConcurrentMap<String, Resolution> resolutions = Maps.newConcurrentMap();
+
+    private final VelocityEngine engine;
+
+    private final long timeout;
+
+    TemplateResolver(VelocityEngine engine, long timeout, TimeUnit timeoutUnit) {
+        this.engine = Preconditions.checkNotNull(engine, "Engine");
+        this.timeout = Preconditions.checkNotNull(timeoutUnit, "TimeoutUnit").toMillis(timeout);
+    }
+
+    /**
+     * Resolves the resource name of the given template.
+     *
+     * @param templateName the template name
+     * @param lang the language, may be blank
+     * @return the resource name of the most specific existing template
+     * @throws ResourceNotFoundException if no candidate exists
+     */
+    String resolve(String templateName, String lang) throws ResourceNotFoundException {
+        final String key = keyOf(templateName, lang);
+        final long now = System.currentTimeMillis();
+        Resolution resolution = resolutions.get(key);
+
+        if (resolution == null || resolution.expires < now) {
+            resolution = new Resolution(probe(templateName, lang), now + timeout);
+            resolutions.put(key, resolution);
+        }
+
+        if (resolution.name == null) {
+            throw new ResourceNotFoundException("Unable to find template " + templateName + " for language " + lang);
+        }
+        return resolution.name;
+    }
+
+    private String probe(String templateName, String lang) {
+        for (String candidate : candidatesOf(templateName, lang)) {
+            if (engine.resourceExists(candidate)) return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the cached resolution of the given template, e.g. because the
+     * resolved template disappeared.
+     *
+     * @param templateName the template name
+     * @param lang the language, may be blank
+     */
+    void invalidate(String templateName, String lang) {
+        resolutions.remove(keyOf(templateName, lang));
+    }
+
+    private String keyOf(String templateName, String lang) {
+        return StringUtils.isBlank(lang) ? templateName : lang + "/" + templateName;
+    }
+
+    /**
+     * Provides all resource names to try for the given template, most specific first.
+     *
+     * @param templateName the template name
+     * @param lang the language, e.g. {@code de_AT}, may be blank
+     * @return all candidates, ending with the template name itself
+     */
+    static List<String> candidatesOf(String templateName, String lang) {
+        final List<String> candidates = Lists.newArrayListWithCapacity(3);
+        if (StringUtils.isNotBlank(lang)) {
+            String current = lang;
+            while (true) {
+                candidates.add(current + "/" + templateName);
+                final int index = current.lastIndexOf('_');
+                if (index <= 0) break;
+                current = current.substring(0, index);
+            }
+        }
+        candidates.add(templateName);
+        return candidates;
+    }
+
+    /**
+     * A cached resolution. A null name marks a miss.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Resolution {
+
+        private final String name;
+
+        private final long expires;
+
+        Resolution(String name, long expires) {
+            this.name = name;
+            this.expires = expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps parsed templates indefinitely and re-parses them in the background
+ * once their files changed, so lookups never touch the file system.
+ *
+ * <p>
+ *   Changes are detected by a single daemon thread comparing modification time
+ *   and length of all known template files. A change is only applied once the file
+ *   has not been modified for the debounce time, which prevents parsing half written files.
+ *   If a changed template can't be parsed, the previous version stays in use.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class TemplateStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateStore.class);
+
+    private final ConcurrentMap<String, Entry> templates = Maps.newConcurrentMap();
+
+    private final VelocityEngine engine;
+
+    private final String charset;
+
+    private final List<File> roots;
+
+    private final long debounce;
+
+    private ScheduledExecutorService watcher;
+
+    TemplateStore(VelocityEngine engine, String charset, long debounce, TimeUnit debounceUnit) {
+        this.engine = Preconditions.checkNotNull(engine, "Engine");
+        this.charset = Preconditions.checkNotNull(charset, "Charset");
+        this.roots = TemplateWarmer.rootsOf(engine);
+        this.debounce = Preconditions.checkNotNull(debounceUnit, "DebounceUnit").toMillis(debounce);
+    }
+
+    /**
+     * Provides the parsed template with the given name, parsing it on first access.
+     *
+     * @param name the resource name
+     * @return the parsed template
+     * @throws Exception if velocity fails to load or parse the template
+     */
+    Template get(String name) throws Exception {
+        final Entry cached = templates.get(name);
+        if (cached != null) return cached.template;
+
+        final File file = fileOf(name);
+        // stamp before parsing, a concurrent change will be picked up by the next check
+        final long lastModified = file == null ? 0L : file.lastModified();
+        final long length = file == null ? 0L : file.length();
+        final Template template = engine.getTemplate(name, charset);
+        templates.putIfAbsent(name, new Entry(template, file, lastModified, length));
+        return template;
+    }
+
+    private File fileOf(String name) {
+        for (File root : roots) {
+            final File file = new File(root, name);
+            if (file.isFile()) return file;
+        }
+        return null;
+    }
+
+    /**
+     * Starts the background thread checking for changed templates.
+     *
+     * @param interval the delay between two checks
+     * @param unit the unit of interval
+     */
+    synchronized void start(long interval, TimeUnit unit) {
+        Preconditions.checkState(watcher == null, "Already started");
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "velocity-mail-reload");
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                /*CHECKSTYLE:OFF*/
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    // never let the scheduled task die
+                    LOG.error("Unable to check templates for changes", e);
+                }
+                /*CHECKSTYLE:ON*/
+            }
+
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Compares all known template files with their state at parse time.
+     */
+    void check() {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> mapping : templates.entrySet()) {
+            final String name = mapping.getKey();
+            final Entry entry = mapping.getValue();
+            if (entry.file == null) continue;
+
+            if (!entry.file.exists()) {
+                LOG.info("Template {} has been removed", name);
+                templates.remove(name, entry);
+                continue;
+            }
+
+            final long lastModified = entry.file.lastModified();
+            final long length = entry.file.length();
+            if (lastModified == entry.lastModified && length == entry.length) {
+                entry.pendingSince = 0L;
+            } else if (entry.pendingSince == 0L ||
+                lastModified != entry.pendingModified || length != entry.pendingLength) {
+                // still being written, wait for the debounce window
+                entry.pendingSince = now;
+                entry.pendingModified = lastModified;
+                entry.pendingLength = length;
+            } else if (now - entry.pendingSince >= debounce) {
+                reload(name, entry, lastModified, length);
+            }
+        }
+    }
+
+    private void reload(String name, Entry entry, long lastModified, long length) {
+        /*CHECKSTYLE:OFF*/
+        try {
+            final Template template = engine.getTemplate(name, charset);
+            templates.replace(name, entry, new Entry(template, entry.file, lastModified, length));
+            LOG.info("Reloaded template {}", name);
+        } catch (Exception e) {
+            LOG.error("Unable to reload template " + name + ", keeping previous version", e);
+            // don't try again until the file changes once more
+            templates.replace(name, entry, new Entry(entry.template, entry.file, lastModified, length));
+        }
+        /*CHECKSTYLE:ON*/
+    }
+
+    /**
+     * Stops the background thread, if running.
+     */
+    synchronized void stop() {
+        if (watcher == null) return;
+        watcher.shutdownNow();
+        watcher = null;
+    }
+
+    /**
+     * A parsed template and the state of its file at parse time.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Entry {
+
+        private final Template template;
+
+        private final File file;
+
+        private final long lastModified;
+
+        private final long length;
+
+        // only accessed by the watcher thread
+        private long pendingSince;
+
+        private long pendingModified;
+
+        private long pendingLength;
+
+        Entry(Template template, File file, long lastModified, long length) {
+            this.template = template;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+    }
+
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Walks the file resource loader path of a {@link VelocityEngine} and
+ * parses every template found there, in parallel.
+ *
+ * @author Willi Schoenborn
+ */
+final class TemplateWarmer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateWarmer.class);
+
+    private static final String PATH = "file.resource.loader.path";
+
+    private final VelocityEngine engine;
+
+    private final TemplateStore store;
+
+    private final String charset;
+
+    private final String suffix;
+
+    private final int threads;
+
+    /**
+     * Creates a new warmer.
+     *
+     * @param engine the engine
+     * @param store the store to fill, may be null to parse using the engine only
+     * @param charset the template charset
+     * @param suffix the file suffix of templates
+     * @param threads the number of threads used to parse
+     */
+    TemplateWarmer(VelocityEngine engine, TemplateStore store, String charset, String suffix, int threads) {
+        this.engine = Preconditions.checkNotNull(engine, "Engine");
+        this.store = store;
+        this.charset = Preconditions.checkNotNull(charset, "Charset");
+        this.suffix = Preconditions.checkNotNull(suffix, "Suffix");
+        Preconditions.checkArgument(threads > 0, "Threads must be positive");
+        this.threads = threads;
+    }
+
+    /**
+     * Parses all templates below the resource loader path, including all language
+     * prefixes.
+     *
+     * @return all parsed templates
+     * @throws IllegalStateException if at least one template could not be parsed
+     */
+    List<Template> warmUp() {
+        final List<String> names = Lists.newArrayList();
+        for (File root : rootsOf(engine)) {
+            collect(root, "", names);
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, names.size())));
+        try {
+            final Map<String, Future<Template>> futures = Maps.newLinkedHashMap();
+            for (final String name : names) {
+                futures.put(name, pool.submit(new Callable<Template>() {
+
+                    @Override
+                    public Template call() throws Exception {
+                        return store == null ? engine.getTemplate(name, charset) : store.get(name);
+                    }
+
+                }));
+            }
+
+            final List<Template> templates = Lists.newArrayListWithCapacity(names.size());
+            final List<String> broken = Lists.newArrayList();
+            for (Map.Entry<String, Future<Template>> entry : futures.entrySet()) {
+                try {
+                    templates.add(entry.getValue().get());
+                } catch (ExecutionException e) {
+                    LOG.error("Unable to parse template " + entry.getKey(), e.getCause());
+                    broken.add(entry.getKey());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while parsing templates", e);
+                }
+            }
+
+            if (broken.isEmpty()) {
+                return templates;
+            } else {
+                throw new IllegalStateException("Unable to parse templates " + broken);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Provides all directories of the file resource loader path.
+     *
+     * @param engine the initialized engine
+     * @return all template directories
+     */
+    static List<File> rootsOf(VelocityEngine engine) {
+        final Object value = engine.getProperty(PATH);
+        final List<File> roots = Lists.newArrayList();
+        if (value instanceof Collection<?>) {
+            for (Object path : (Collection<?>) value) {
+                roots.add(new File(path.toString().trim()));
+            }
+        } else if (value != null) {
+            for (String path : value.toString().split(",")) {
+                roots.add(new File(path.trim()));
+            }
+        }
+        return roots;
+    }
+
+    private void collect(File directory, String prefix, List<String> names) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            LOG.warn("Unable to list templates in {}", directory);
+            return;
+        }
+        for (File file : files) {
+            if (file.isHidden()) {
+                continue;
+            } else if (file.isDirectory()) {
+                collect(file, prefix + file.getName() + "/", names);
+            } else if (file.getName().endsWith(suffix)) {
+                names.add(prefix + file.getName());
+            }
+        }
+    }
+
+}
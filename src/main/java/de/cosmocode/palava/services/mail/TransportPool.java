@@ -0,0 +1,242 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded pool of connected smtp {@link Transport}s. Idle connections are
+ * checked before they are reused and closed once they exceeded the maximum
+ * idle time or delivered the maximum number of messages.
+ *
+ * @author Willi Schoenborn
+ */
+final class TransportPool implements MessageDelivery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransportPool.class);
+    
+    private final Session session;
+    
+    private final Semaphore permits;
+    
+    private final long maxIdleTime;
+    
+    private final int maxMessages;
+    
+    // most recently used connections are at the head
+    private final LinkedList<PooledTransport> idle = new LinkedList<PooledTransport>();
+    
+    private boolean closed;
+    
+    /**
+     * Creates a new pool.
+     * 
+     * @param session the session used to create transports
+     * @param maxConnections the maximum number of open connections
+     * @param maxIdleTime the time after which idle connections get closed
+     * @param maxIdleTimeUnit the unit of maxIdleTime
+     * @param maxMessages the number of messages after which a connection gets closed, 0 means unlimited
+     */
+    TransportPool(Session session, int maxConnections, long maxIdleTime, TimeUnit maxIdleTimeUnit, int maxMessages) {
+        Preconditions.checkArgument(maxConnections > 0, "MaxConnections must be positive");
+        Preconditions.checkArgument(maxIdleTime >= 0, "MaxIdleTime must not be negative");
+        Preconditions.checkArgument(maxMessages >= 0, "MaxMessages must not be negative");
+        this.session = Preconditions.checkNotNull(session, "Session");
+        this.permits = new Semaphore(maxConnections, true);
+        this.maxIdleTime = Preconditions.checkNotNull(maxIdleTimeUnit, "MaxIdleTimeUnit").toMillis(maxIdleTime);
+        this.maxMessages = maxMessages;
+    }
+    
+    @Override
+    public void deliver(MimeMessage message) throws MessagingException {
+        message.saveChanges();
+        final PooledTransport transport = borrow();
+        boolean broken = true;
+        try {
+            transport.send(message);
+            broken = false;
+        } catch (SendFailedException e) {
+            // rejected recipients don't affect the connection
+            broken = false;
+            throw e;
+        } finally {
+            release(transport, broken);
+        }
+    }
+    
+    private PooledTransport borrow() throws MessagingException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a connection", e);
+        }
+        
+        try {
+            PooledTransport transport;
+            while ((transport = poll()) != null) {
+                if (transport.isExpired()) {
+                    LOG.trace("Closing expired connection {}", transport);
+                    transport.close();
+                } else if (transport.isHealthy()) {
+                    return transport;
+                } else {
+                    LOG.debug("Closing broken connection {}", transport);
+                    transport.close();
+                }
+            }
+            
+            final Transport connected = session.getTransport("smtp");
+            connected.connect();
+            LOG.debug("Opened new connection {}", connected);
+            return new PooledTransport(connected);
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            permits.release();
+            throw e;
+        } catch (MessagingException e) {
+            permits.release();
+            throw e;
+        }
+    }
+    
+    private synchronized PooledTransport poll() {
+        return idle.poll();
+    }
+    
+    private void release(PooledTransport transport, boolean broken) {
+        try {
+            if (broken || transport.isExhausted()) {
+                transport.close();
+            } else if (!offer(transport)) {
+                transport.close();
+            }
+            evictExpired();
+        } finally {
+            permits.release();
+        }
+    }
+    
+    private synchronized boolean offer(PooledTransport transport) {
+        if (closed) return false;
+        transport.touch();
+        idle.addFirst(transport);
+        return true;
+    }
+    
+    private void evictExpired() {
+        final LinkedList<PooledTransport> expired = new LinkedList<PooledTransport>();
+        synchronized (this) {
+            final Iterator<PooledTransport> iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                final PooledTransport transport = iterator.next();
+                if (transport.isExpired()) {
+                    iterator.remove();
+                    expired.add(transport);
+                } else {
+                    break;
+                }
+            }
+        }
+        for (PooledTransport transport : expired) {
+            transport.close();
+        }
+    }
+    
+    @Override
+    public void close() {
+        final LinkedList<PooledTransport> connections;
+        synchronized (this) {
+            closed = true;
+            connections = new LinkedList<PooledTransport>(idle);
+            idle.clear();
+        }
+        for (PooledTransport transport : connections) {
+            transport.close();
+        }
+    }
+    
+    /**
+     * A connected transport and its usage.
+     *
+     * @author Willi Schoenborn
+     */
+    private final class PooledTransport {
+        
+        private final Transport transport;
+        
+        private int messages;
+        
+        private long lastUsed = System.currentTimeMillis();
+        
+        public PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+        
+        void send(MimeMessage message) throws MessagingException {
+            messages++;
+            transport.sendMessage(message, message.getAllRecipients());
+        }
+        
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+        
+        boolean isExpired() {
+            return System.currentTimeMillis() - lastUsed > maxIdleTime;
+        }
+        
+        boolean isExhausted() {
+            return maxMessages > 0 && messages >= maxMessages;
+        }
+        
+        boolean isHealthy() {
+            // smtp transports issue a NOOP to check the connection
+            return transport.isConnected();
+        }
+        
+        void close() {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                LOG.debug("Unable to close connection " + transport, e);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return transport.toString();
+        }
+        
+    }
+    
+}
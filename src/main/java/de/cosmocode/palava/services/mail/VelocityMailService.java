@@ -16,27 +16,51 @@
 
 package de.cosmocode.palava.services.mail;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
 import javax.mail.internet.MimeMessage;
+import javax.management.ObjectName;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.mail.Email;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
-import org.jdom.Document;
-import org.jdom.input.SAXBuilder;
+import org.apache.velocity.app.event.EventCartridge;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
+import de.cosmocode.palava.core.lifecycle.Disposable;
 import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.mail.templating.velocity.PipelineStatistics;
+import de.cosmocode.palava.mail.templating.velocity.Stage;
 import de.cosmocode.palava.mail.templating.velocity.VelocityTemplateEngine;
 
 /**
@@ -46,35 +70,600 @@ import de.cosmocode.palava.mail.templating.velocity.VelocityTemplateEngine;
  * @author Willi Schoenborn
  */
 @Deprecated
-final class VelocityMailService implements MailService, Initializable {
+final class VelocityMailService implements MailService, BatchMailService, MailMergeService, MailRenderService,
+    Initializable, Disposable {
 
+    private static final Logger LOG = LoggerFactory.getLogger(VelocityMailService.class);
+    
     private static final Locale NO_LOCALE = null;
     
     private static final String CHARSET = "UTF-8";
     
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    
+    private static final String OBJECT_NAME = "de.cosmocode.palava.services.mail:type=VelocityMailService";
+    
+    private static final EntityEncodingHandler ENTITY_ENCODING = new EntityEncodingHandler();
+    
+    private static final String USER_DIRECTIVE = "userdirective";
+    
     private final String hostname;
     
     private final File properties;
     
     private final VelocityEngine engine = new VelocityEngine();
+    
+    private boolean autoEscape;
+    
+    private int maxConnections;
+    
+    private long maxIdleTime = 30;
+    
+    private TimeUnit maxIdleTimeUnit = TimeUnit.SECONDS;
+    
+    private int maxMessages = 100;
+    
+    private long resourcesMaxSize = 16L * 1024 * 1024;
+    
+    private boolean resourcesMapped;
+    
+    private long resourcesCheckInterval = 1;
+    
+    private TimeUnit resourcesCheckIntervalUnit = TimeUnit.SECONDS;
+    
+    private long encodedMaxSize = 8L * 1024 * 1024;
+    
+    private MessageDelivery delivery;
+    
+    private ResourceCache resources;
+    
+    private EncodedPartCache encodedParts;
+    
+    private final PipelineStatistics statistics = new PipelineStatistics();
+    
+    private String statisticsName = Integer.toHexString(System.identityHashCode(this));
+    
+    private boolean warmUp;
+    
+    private int warmUpThreads = Runtime.getRuntime().availableProcessors();
+    
+    private String warmUpSuffix = ".vm";
+    
+    private int warmUpMerges;
+    
+    private boolean reload;
+    
+    private long reloadInterval = 1;
+    
+    private TimeUnit reloadIntervalUnit = TimeUnit.SECONDS;
+    
+    private long reloadDebounce = 500;
+    
+    private TimeUnit reloadDebounceUnit = TimeUnit.MILLISECONDS;
+    
+    private TemplateStore store;
+    
+    private long fallbackTimeout = 1;
+    
+    private TimeUnit fallbackTimeoutUnit = TimeUnit.MINUTES;
+    
+    private TemplateResolver resolver;
+    
+    private Map<String, Object> globals = ImmutableMap.of();
+    
+    private Context globalContext;
+    
+    private final ConcurrentMap<String, AddressCache> addresses = Maps.newConcurrentMap();
+    
+    private int mergeRenderThreads = Runtime.getRuntime().availableProcessors();
+    
+    private int mergeDeliveryThreads = 4;
+    
+    private int mergeQueueSize = 100;
+    
+    private long mergeCheckpointInterval = 1000;
+    
+    private File outbox;
+    
+    private int outboxThreads;
+    
+    private long outboxSegmentSize = 64L * 1024 * 1024;
+    
+    private boolean outboxSync = true;
+    
+    private int outboxMaxAttempts = 10;
+    
+    private long outboxRetryDelay = 1;
+    
+    private TimeUnit outboxRetryDelayUnit = TimeUnit.SECONDS;
+    
+    private String relays;
+    
+    private Routing relayRouting = Routing.WEIGHTED_ROUND_ROBIN;
+    
+    private int relayMaxFailures = 3;
+    
+    private long relayRetryAfter = 30;
+    
+    private TimeUnit relayRetryAfterUnit = TimeUnit.SECONDS;
 
     @Inject
     public VelocityMailService(
-        @Named("mail.velocity.properties") File properties, 
-        @Named("mail.velocity.hostname") String hostname) {
+        @Named(VelocityMailServiceConfig.PROPERTIES) File properties, 
+        @Named(VelocityMailServiceConfig.HOSTNAME) String hostname) {
         this.properties = Preconditions.checkNotNull(properties, "Properties");
         this.hostname = Preconditions.checkNotNull(hostname, "Hostname");
     }
     
+    /**
+     * Enables automatic entity encoding of all inserted references using
+     * the {@link EntityEncodingHandler}. Defaults to false.
+     * 
+     * @param autoEscape true to encode all references
+     */
+    @Inject(optional = true)
+    void setAutoEscape(@Named(VelocityMailServiceConfig.AUTO_ESCAPE) boolean autoEscape) {
+        this.autoEscape = autoEscape;
+    }
+    
+    /**
+     * Enables pooling of smtp connections. Defaults to 0, which opens
+     * a new connection for every message.
+     * 
+     * @param maxConnections the maximum number of open connections
+     */
+    @Inject(optional = true)
+    void setMaxConnections(@Named(VelocityMailServiceConfig.POOL_MAX_CONNECTIONS) int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+    
+    @Inject(optional = true)
+    void setMaxIdleTime(@Named(VelocityMailServiceConfig.POOL_MAX_IDLE_TIME) long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+    
+    @Inject(optional = true)
+    void setMaxIdleTimeUnit(@Named(VelocityMailServiceConfig.POOL_MAX_IDLE_TIME_UNIT) TimeUnit maxIdleTimeUnit) {
+        this.maxIdleTimeUnit = Preconditions.checkNotNull(maxIdleTimeUnit, "MaxIdleTimeUnit");
+    }
+    
+    @Inject(optional = true)
+    void setMaxMessages(@Named(VelocityMailServiceConfig.POOL_MAX_MESSAGES) int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+    
+    @Inject(optional = true)
+    void setResourcesMaxSize(@Named(VelocityMailServiceConfig.RESOURCES_MAX_SIZE) long resourcesMaxSize) {
+        this.resourcesMaxSize = resourcesMaxSize;
+    }
+    
+    /**
+     * Controls whether cached attachments and embedded files are memory mapped
+     * instead of being copied into the heap. Defaults to false.
+     * 
+     * @param resourcesMapped true to memory map resources
+     */
+    @Inject(optional = true)
+    void setResourcesMapped(@Named(VelocityMailServiceConfig.RESOURCES_MAPPED) boolean resourcesMapped) {
+        this.resourcesMapped = resourcesMapped;
+    }
+    
+    @Inject(optional = true)
+    void setResourcesCheckInterval(
+        @Named(VelocityMailServiceConfig.RESOURCES_CHECK_INTERVAL) long resourcesCheckInterval) {
+        this.resourcesCheckInterval = resourcesCheckInterval;
+    }
+    
+    @Inject(optional = true)
+    void setResourcesCheckIntervalUnit(
+        @Named(VelocityMailServiceConfig.RESOURCES_CHECK_INTERVAL_UNIT) TimeUnit resourcesCheckIntervalUnit) {
+        this.resourcesCheckIntervalUnit = Preconditions.checkNotNull(resourcesCheckIntervalUnit, 
+            "ResourcesCheckIntervalUnit");
+    }
+    
+    /**
+     * Sets the maximum size of base64 encoded resources kept in memory.
+     * Defaults to 8 MiB, 0 disables the cache.
+     * 
+     * @param encodedMaxSize the maximum number of encoded bytes
+     */
+    @Inject(optional = true)
+    void setEncodedMaxSize(@Named(VelocityMailServiceConfig.ENCODED_MAX_SIZE) long encodedMaxSize) {
+        this.encodedMaxSize = encodedMaxSize;
+    }
+    
+    /**
+     * Enables per stage timing and counters, exposed via jmx. Defaults to false.
+     * 
+     * @param enabled true to record statistics
+     */
+    @Inject(optional = true)
+    void setStatistics(@Named(VelocityMailServiceConfig.STATISTICS) boolean enabled) {
+        statistics.setEnabled(enabled);
+    }
+    
+    /**
+     * Sets the name under which the statistics are registered via jmx, which has to be
+     * unique per jvm. Defaults to the identity hash code of this service.
+     * 
+     * @param statisticsName the value of the name key of the object name
+     */
+    @Inject(optional = true)
+    void setStatisticsName(@Named(VelocityMailServiceConfig.STATISTICS_NAME) String statisticsName) {
+        this.statisticsName = Preconditions.checkNotNull(statisticsName, "StatisticsName");
+    }
+    
+    /**
+     * Enables parsing of all templates on startup, which fails fast on broken
+     * templates. Defaults to false.
+     * 
+     * @param warmUp true to parse all templates during {@link #initialize()}
+     */
+    @Inject(optional = true)
+    void setWarmUp(@Named(VelocityMailServiceConfig.WARMUP) boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+    
+    @Inject(optional = true)
+    void setWarmUpThreads(@Named(VelocityMailServiceConfig.WARMUP_THREADS) int warmUpThreads) {
+        this.warmUpThreads = warmUpThreads;
+    }
+    
+    @Inject(optional = true)
+    void setWarmUpSuffix(@Named(VelocityMailServiceConfig.WARMUP_SUFFIX) String warmUpSuffix) {
+        this.warmUpSuffix = Preconditions.checkNotNull(warmUpSuffix, "WarmUpSuffix");
+    }
+    
+    /**
+     * Sets the number of synthetic renderings of every template during warm up,
+     * using empty parameters. Defaults to 0.
+     * 
+     * @param warmUpMerges the number of renderings per template
+     */
+    @Inject(optional = true)
+    void setWarmUpMerges(@Named(VelocityMailServiceConfig.WARMUP_MERGES) int warmUpMerges) {
+        this.warmUpMerges = warmUpMerges;
+    }
+    
+    /**
+     * Keeps all parsed templates in memory and re-parses changed template files
+     * in the background. This replaces velocity's own file loader cache, which
+     * is disabled in this mode. Defaults to false.
+     * 
+     * @param reload true to enable background reloading
+     */
+    @Inject(optional = true)
+    void setReload(@Named(VelocityMailServiceConfig.RELOAD) boolean reload) {
+        this.reload = reload;
+    }
+    
+    @Inject(optional = true)
+    void setReloadInterval(@Named(VelocityMailServiceConfig.RELOAD_INTERVAL) long reloadInterval) {
+        this.reloadInterval = reloadInterval;
+    }
+    
+    @Inject(optional = true)
+    void setReloadIntervalUnit(@Named(VelocityMailServiceConfig.RELOAD_INTERVAL_UNIT) TimeUnit reloadIntervalUnit) {
+        this.reloadIntervalUnit = Preconditions.checkNotNull(reloadIntervalUnit, "ReloadIntervalUnit");
+    }
+    
+    @Inject(optional = true)
+    void setReloadDebounce(@Named(VelocityMailServiceConfig.RELOAD_DEBOUNCE) long reloadDebounce) {
+        this.reloadDebounce = reloadDebounce;
+    }
+    
+    @Inject(optional = true)
+    void setReloadDebounceUnit(@Named(VelocityMailServiceConfig.RELOAD_DEBOUNCE_UNIT) TimeUnit reloadDebounceUnit) {
+        this.reloadDebounceUnit = Preconditions.checkNotNull(reloadDebounceUnit, "ReloadDebounceUnit");
+    }
+    
+    /**
+     * Sets how long resolved locale fallbacks, including missing templates,
+     * are cached. Defaults to one minute.
+     * 
+     * @param fallbackTimeout the cache timeout
+     */
+    @Inject(optional = true)
+    void setFallbackTimeout(@Named(VelocityMailServiceConfig.FALLBACK_TIMEOUT) long fallbackTimeout) {
+        this.fallbackTimeout = fallbackTimeout;
+    }
+    
+    @Inject(optional = true)
+    void setFallbackTimeoutUnit(
+        @Named(VelocityMailServiceConfig.FALLBACK_TIMEOUT_UNIT) TimeUnit fallbackTimeoutUnit) {
+        this.fallbackTimeoutUnit = Preconditions.checkNotNull(fallbackTimeoutUnit, "FallbackTimeoutUnit");
+    }
+    
+    /**
+     * Sets variables which are available to all templates, e.g. formatters or
+     * url builders. They are copied once into an immutable context which backs
+     * the parameters of every message. Parameters take precedence over globals
+     * of the same name.
+     * 
+     * @param globals the global variables
+     */
+    @Inject(optional = true)
+    void setGlobals(@Named(VelocityMailServiceConfig.GLOBALS) Map<String, Object> globals) {
+        this.globals = Preconditions.checkNotNull(globals, "Globals");
+    }
+    
+    @Inject(optional = true)
+    void setMergeRenderThreads(@Named(VelocityMailServiceConfig.MERGE_RENDER_THREADS) int mergeRenderThreads) {
+        this.mergeRenderThreads = mergeRenderThreads;
+    }
+    
+    /**
+     * Sets the number of threads delivering merged messages. Without pooling, this is
+     * also the number of smtp connections used by a merge. Defaults to 4.
+     * 
+     * @param mergeDeliveryThreads the number of delivery threads
+     */
+    @Inject(optional = true)
+    void setMergeDeliveryThreads(
+        @Named(VelocityMailServiceConfig.MERGE_DELIVERY_THREADS) int mergeDeliveryThreads) {
+        this.mergeDeliveryThreads = mergeDeliveryThreads;
+    }
+    
+    @Inject(optional = true)
+    void setMergeQueueSize(@Named(VelocityMailServiceConfig.MERGE_QUEUE_SIZE) int mergeQueueSize) {
+        this.mergeQueueSize = mergeQueueSize;
+    }
+    
+    /**
+     * Sets the number of processed recipients after which the progress of a merge
+     * is saved. Defaults to 1000.
+     * 
+     * @param mergeCheckpointInterval the number of recipients between two checkpoints
+     */
+    @Inject(optional = true)
+    void setMergeCheckpointInterval(
+        @Named(VelocityMailServiceConfig.MERGE_CHECKPOINT_INTERVAL) long mergeCheckpointInterval) {
+        this.mergeCheckpointInterval = mergeCheckpointInterval;
+    }
+    
+    /**
+     * Enables spooling of rendered messages to the given directory. Messages are
+     * delivered from there in the background and survive relay outages and restarts.
+     * Defaults to null, which delivers directly.
+     * 
+     * @param outbox the spool directory
+     */
+    @Inject(optional = true)
+    void setOutbox(@Named(VelocityMailServiceConfig.OUTBOX) File outbox) {
+        this.outbox = outbox;
+    }
+    
+    /**
+     * Sets the number of threads delivering spooled messages. Defaults to one
+     * per connection of the transport pool or of all relays.
+     * 
+     * @param outboxThreads the number of delivery threads
+     */
+    @Inject(optional = true)
+    void setOutboxThreads(@Named(VelocityMailServiceConfig.OUTBOX_THREADS) int outboxThreads) {
+        this.outboxThreads = outboxThreads;
+    }
+    
+    @Inject(optional = true)
+    void setOutboxSegmentSize(@Named(VelocityMailServiceConfig.OUTBOX_SEGMENT_SIZE) long outboxSegmentSize) {
+        this.outboxSegmentSize = outboxSegmentSize;
+    }
+    
+    /**
+     * Controls whether spooled messages are forced to disk before sending returns.
+     * Defaults to true.
+     * 
+     * @param outboxSync false to leave flushing to the operating system
+     */
+    @Inject(optional = true)
+    void setOutboxSync(@Named(VelocityMailServiceConfig.OUTBOX_SYNC) boolean outboxSync) {
+        this.outboxSync = outboxSync;
+    }
+    
+    @Inject(optional = true)
+    void setOutboxMaxAttempts(@Named(VelocityMailServiceConfig.OUTBOX_MAX_ATTEMPTS) int outboxMaxAttempts) {
+        this.outboxMaxAttempts = outboxMaxAttempts;
+    }
+    
+    @Inject(optional = true)
+    void setOutboxRetryDelay(@Named(VelocityMailServiceConfig.OUTBOX_RETRY_DELAY) long outboxRetryDelay) {
+        this.outboxRetryDelay = outboxRetryDelay;
+    }
+    
+    @Inject(optional = true)
+    void setOutboxRetryDelayUnit(
+        @Named(VelocityMailServiceConfig.OUTBOX_RETRY_DELAY_UNIT) TimeUnit outboxRetryDelayUnit) {
+        this.outboxRetryDelayUnit = Preconditions.checkNotNull(outboxRetryDelayUnit, "OutboxRetryDelayUnit");
+    }
+    
+    /**
+     * Distributes messages over the given relays instead of the single hostname.
+     * Relays are separated by comma, each given as {@code host[:port][*weight]}, e.g.
+     * {@code "smtp1,smtp2:2525*2"}. Defaults to null, which uses the hostname only.
+     * 
+     * @param relays the relays
+     */
+    @Inject(optional = true)
+    void setRelays(@Named(VelocityMailServiceConfig.RELAYS) String relays) {
+        this.relays = relays;
+    }
+    
+    @Inject(optional = true)
+    void setRelayRouting(@Named(VelocityMailServiceConfig.RELAY_ROUTING) Routing relayRouting) {
+        this.relayRouting = Preconditions.checkNotNull(relayRouting, "RelayRouting");
+    }
+    
+    /**
+     * Sets the number of consecutive failures after which a relay is considered down.
+     * Defaults to 3.
+     * 
+     * @param relayMaxFailures the number of failures
+     */
+    @Inject(optional = true)
+    void setRelayMaxFailures(@Named(VelocityMailServiceConfig.RELAY_MAX_FAILURES) int relayMaxFailures) {
+        this.relayMaxFailures = relayMaxFailures;
+    }
+    
+    @Inject(optional = true)
+    void setRelayRetryAfter(@Named(VelocityMailServiceConfig.RELAY_RETRY_AFTER) long relayRetryAfter) {
+        this.relayRetryAfter = relayRetryAfter;
+    }
+    
+    @Inject(optional = true)
+    void setRelayRetryAfterUnit(
+        @Named(VelocityMailServiceConfig.RELAY_RETRY_AFTER_UNIT) TimeUnit relayRetryAfterUnit) {
+        this.relayRetryAfterUnit = Preconditions.checkNotNull(relayRetryAfterUnit, "RelayRetryAfterUnit");
+    }
+    
+    PipelineStatistics getStatistics() {
+        return statistics;
+    }
+    
     @Override
     public void initialize() {
         /*CHECKSTYLE:OFF*/
         try {
-            engine.init(properties.getAbsolutePath());
+            final Properties configuration = new Properties();
+            final InputStream stream = new FileInputStream(properties);
+            try {
+                configuration.load(stream);
+            } finally {
+                stream.close();
+            }
+            if (reload) {
+                // the store caches parsed templates, velocity has to parse on every request of it
+                configuration.setProperty("file.resource.loader.cache", "false");
+            }
+            final String directives = configuration.getProperty(USER_DIRECTIVE);
+            configuration.setProperty(USER_DIRECTIVE, StringUtils.isBlank(directives) ? 
+                EncodeDirective.class.getName() : directives + "," + EncodeDirective.class.getName());
+            engine.init(configuration);
         } catch (Exception e) {
             throw new IllegalArgumentException(e);
         }
         /*CHECKSTYLE:ON*/
+        
+        final Map<String, Object> variables = Maps.newHashMap();
+        variables.put("entity", EntityEncoder.getInstance());
+        variables.putAll(globals);
+        globalContext = new VelocityContext(ImmutableMap.copyOf(variables));
+        
+        resolver = new TemplateResolver(engine, fallbackTimeout, fallbackTimeoutUnit);
+        
+        if (reload) {
+            store = new TemplateStore(engine, CHARSET, reloadDebounce, reloadDebounceUnit);
+        }
+        
+        resources = new ResourceCache(resourcesMaxSize, resourcesMapped, 
+            resourcesCheckInterval, resourcesCheckIntervalUnit, statistics);
+        encodedParts = new EncodedPartCache(encodedMaxSize);
+        
+        statistics.register("resources", resources);
+        statistics.register("encoded", encodedParts);
+        
+        if (warmUp) {
+            warmUp();
+        }
+        
+        if (reload) {
+            store.start(reloadInterval, reloadIntervalUnit);
+        }
+        
+        // every instance needs a name of its own, e.g. when configured per relay group
+        statistics.registerMBean(OBJECT_NAME + ",name=" + ObjectName.quote(statisticsName));
+        
+        // the number of messages the delivery can send at the same time
+        int connections = Math.max(1, maxConnections);
+        if (StringUtils.isNotBlank(relays)) {
+            final List<RelayBalancer.Relay> list = relaysOf(relays);
+            connections *= list.size();
+            delivery = new RelayBalancer(list, relayRouting, relayMaxFailures, 
+                relayRetryAfter, relayRetryAfterUnit, statistics);
+        } else if (maxConnections > 0) {
+            delivery = new TransportPool(newSession(), maxConnections, maxIdleTime, maxIdleTimeUnit, maxMessages);
+        }
+        
+        if (outbox != null) {
+            final MessageDelivery target = delivery == null ? new DirectDelivery(newSession()) : delivery;
+            final int threads = outboxThreads > 0 ? outboxThreads : connections;
+            try {
+                delivery = new Outbox(outbox, newSession(), target, threads, outboxSegmentSize, outboxSync, 
+                    outboxMaxAttempts, outboxRetryDelay, outboxRetryDelayUnit);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open outbox " + outbox, e);
+            }
+        }
+    }
+    
+    private void warmUp() {
+        final long start = System.currentTimeMillis();
+        final TemplateWarmer warmer = new TemplateWarmer(engine, store, CHARSET, warmUpSuffix, warmUpThreads);
+        final List<Template> templates = warmer.warmUp();
+        LOG.info("Parsed {} templates in {}ms", templates.size(), System.currentTimeMillis() - start);
+        
+        final Object cache = engine.getProperty("file.resource.loader.cache");
+        if (store == null && !Boolean.parseBoolean(String.valueOf(cache))) {
+            LOG.warn("file.resource.loader.cache is disabled, parsed templates will not be reused");
+        }
+        
+        if (warmUpMerges <= 0) return;
+        
+        final long merging = System.currentTimeMillis();
+        for (int i = 0; i < warmUpMerges; i++) {
+            for (Template template : templates) {
+                /*CHECKSTYLE:OFF*/
+                try {
+                    render(template, Maps.<String, Object>newHashMap());
+                } catch (Exception e) {
+                    // templates usually require parameters, rendering them is best effort
+                    LOG.debug("Synthetic rendering of {} failed: {}", template.getName(), e.toString());
+                }
+                /*CHECKSTYLE:ON*/
+            }
+        }
+        // synthetic renderings should not show up in production numbers
+        statistics.reset();
+        LOG.info("Rendered {} templates {} times in {}ms", new Object[] {
+            templates.size(), warmUpMerges, System.currentTimeMillis() - merging
+        });
+    }
+    
+    private List<RelayBalancer.Relay> relaysOf(String specification) {
+        final List<RelayBalancer.Relay> list = Lists.newArrayList();
+        for (String relay : StringUtils.split(specification, ',')) {
+            final String[] parts = StringUtils.split(relay.trim(), '*');
+            final int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            final String address = parts[0].trim();
+            final int colon = address.lastIndexOf(':');
+            final String host = colon == -1 ? address : address.substring(0, colon);
+            final int port = colon == -1 ? -1 : Integer.parseInt(address.substring(colon + 1));
+            
+            final Session session = newSession(host, port);
+            final MessageDelivery relayDelivery;
+            if (maxConnections > 0) {
+                relayDelivery = new TransportPool(session, maxConnections, 
+                    maxIdleTime, maxIdleTimeUnit, maxMessages);
+            } else {
+                relayDelivery = new DirectDelivery(session);
+            }
+            list.add(new RelayBalancer.Relay(address, weight, relayDelivery));
+        }
+        return list;
+    }
+    
+    private Session newSession() {
+        return newSession(hostname, -1);
+    }
+    
+    private Session newSession(String host, int port) {
+        // same defaults as commons-email uses
+        final Properties session = new Properties(System.getProperties());
+        session.setProperty("mail.transport.protocol", "smtp");
+        session.setProperty("mail.smtp.host", host);
+        if (port != -1) {
+            session.setProperty("mail.smtp.port", Integer.toString(port));
+        }
+        return Session.getInstance(session);
     }
     
     @Override
@@ -95,35 +684,208 @@ final class VelocityMailService implements MailService, Initializable {
     @Override
     public MimeMessage sendMessage(String templateName, String lang, Map<String, ?> params, String... to) 
         throws Exception {
-        if (templateName == null) throw new IllegalArgumentException("Template name is null");
-        
-        final VelocityContext ctx = new VelocityContext(params);
-        
-        final String prefix = StringUtils.isBlank(lang) ? "" : lang + "/";
-        final Template template = engine.getTemplate(prefix + templateName, CHARSET);
-        
-        final Embedder embed = new Embedder(engine);
-        ctx.put("embed", embed);
-        
-        ctx.put("entity", EntityEncoder.getInstance());
+        final Template template = lookup(templateName, lang);
+        final MimeMessage message = render(template, params, to);
+        deliver(delivery, template.getName(), message);
+        return message;
+    }
+    
+    @Override
+    public MimeMessage renderMessage(String templateName, String lang, Map<String, ?> params, String... to)
+        throws Exception {
+        final MimeMessage message = render(lookup(templateName, lang), params, to);
+        // sets message id and mime headers, like sending does
+        message.saveChanges();
+        return message;
+    }
+    
+    @Override
+    public void writeMessage(String templateName, String lang, Map<String, ?> params, OutputStream output)
+        throws Exception {
+        Preconditions.checkNotNull(output, "Output");
+        renderMessage(templateName, lang, params).writeTo(output);
+    }
+    
+    @Override
+    public void writeMessage(String templateName, String lang, Map<String, ?> params, WritableByteChannel channel)
+        throws Exception {
+        Preconditions.checkNotNull(channel, "Channel");
+        final MimeMessage message = renderMessage(templateName, lang, params);
+        // mime messages are written line by line, which would otherwise cost one write per line
+        final OutputStream output = new BufferedOutputStream(Channels.newOutputStream(channel), 
+            WRITE_BUFFER_SIZE);
+        message.writeTo(output);
+        output.flush();
+    }
+    
+    @Override
+    public BatchResult sendBatch(String templateName, String lang, Iterable<? extends Map<String, ?>> recipients)
+        throws Exception {
+        Preconditions.checkNotNull(recipients, "Recipients");
+        final Template template = lookup(templateName, lang);
         
-        final StringWriter writer = new StringWriter();
-        template.merge(ctx, writer);
+        // without a pool, the batch shares one connection per delivery thread
+        final MessageDelivery batchDelivery;
+        if (delivery == null) {
+            batchDelivery = new TransportPool(newSession(), mergeDeliveryThreads, 
+                maxIdleTime, maxIdleTimeUnit, maxMessages);
+        } else {
+            batchDelivery = delivery;
+        }
         
-        final EmailFactory factory = EmailFactory.getInstance();
-        final SAXBuilder builder = new SAXBuilder();
-        final Document document = builder.build(new StringReader(writer.toString()));
+        try {
+            return new MailMerge(this, batchDelivery, mergeRenderThreads, mergeDeliveryThreads, 
+                mergeQueueSize, mergeCheckpointInterval).batch(template, recipients);
+        } finally {
+            if (batchDelivery != delivery) {
+                batchDelivery.close();
+            }
+        }
+    }
+    
+    @Override
+    public MergeResult merge(String templateName, String lang, Iterator<? extends Map<String, ?>> recipients,
+        MergeCheckpoint checkpoint) throws Exception {
+        Preconditions.checkNotNull(recipients, "Recipients");
+        final Template template = lookup(templateName, lang);
         
-        final Email email = factory.build(document, embed);
-        email.setHostName(hostname);
+        final MessageDelivery mergeDelivery;
+        if (delivery == null) {
+            mergeDelivery = new TransportPool(newSession(), mergeDeliveryThreads, 
+                maxIdleTime, maxIdleTimeUnit, maxMessages);
+        } else {
+            mergeDelivery = delivery;
+        }
         
-        for (String recipient : to) {
-            email.addTo(recipient);
+        try {
+            return new MailMerge(this, mergeDelivery, mergeRenderThreads, mergeDeliveryThreads, 
+                mergeQueueSize, mergeCheckpointInterval).run(template, recipients, checkpoint);
+        } finally {
+            if (mergeDelivery != delivery) {
+                mergeDelivery.close();
+            }
         }
+    }
+    
+    private Template lookup(String templateName, String lang) throws Exception {
+        if (templateName == null) throw new IllegalArgumentException("Template name is null");
+        final long start = statistics.start();
+        /*CHECKSTYLE:OFF*/
+        try {
+            final String name = resolver.resolve(templateName, lang);
+            final Template template;
+            try {
+                if (store == null) {
+                    template = engine.getTemplate(name, CHARSET);
+                } else {
+                    template = store.get(name);
+                }
+            } catch (ResourceNotFoundException e) {
+                // removed since it has been resolved
+                resolver.invalidate(templateName, lang);
+                throw e;
+            }
+            statistics.record(Stage.LOOKUP, template.getName(), start);
+            return template;
+        } catch (Exception e) {
+            statistics.failed(Stage.LOOKUP);
+            throw e;
+        }
+        /*CHECKSTYLE:ON*/
+    }
+    
+    void deliver(MessageDelivery to, String templateName, MimeMessage message) throws MessagingException {
+        final long start = statistics.start();
+        try {
+            if (to == null) {
+                Transport.send(message);
+            } else {
+                to.deliver(message);
+            }
+        } catch (MessagingException e) {
+            statistics.failed(Stage.SEND);
+            throw e;
+        }
+        statistics.record(Stage.SEND, templateName, start);
+    }
+    
+    /**
+     * Renders the given template into a complete message, ready to be sent.
+     */
+    MimeMessage render(Template template, Map<String, ?> params, String... to) 
+        throws Exception {
         
-        email.send();
+        final String name = template.getName();
+        Stage stage = Stage.MERGE;
+        long start = statistics.start();
         
-        return email.getMimeMessage();
+        /*CHECKSTYLE:OFF*/
+        try {
+            // helpers and #set go into the outer layer, the parameters of the caller stay untouched
+            final VelocityContext ctx = new VelocityContext(new HashMap<String, Object>(4), 
+                new VelocityContext(params, globalContext));
+            
+            final Embedder embed = new Embedder(engine, resources);
+            ctx.put("embed", embed);
+            
+            if (autoEscape) {
+                final EventCartridge cartridge = new EventCartridge();
+                cartridge.addEventHandler(ENTITY_ENCODING);
+                cartridge.attachToContext(ctx);
+            }
+            
+            final RenderBuffer buffer = new RenderBuffer();
+            template.merge(ctx, buffer);
+            start = statistics.record(stage, name, start);
+            
+            stage = Stage.PARSE;
+            final EmailFactory factory = EmailFactory.getInstance();
+            final Envelope envelope = EnvelopeReader.getInstance().read(buffer.getReader());
+            start = statistics.record(stage, name, start);
+            
+            stage = Stage.BUILD;
+            final Email email = factory.build(envelope, embed, resources, addressesOf(name));
+            email.setHostName(hostname);
+            
+            for (String recipient : to) {
+                email.addTo(recipient);
+            }
+            start = statistics.record(stage, name, start);
+            
+            stage = Stage.MIME;
+            email.buildMimeMessage();
+            
+            final MimeMessage message = email.getMimeMessage();
+            encodedParts.splice(message);
+            statistics.record(stage, name, start);
+            return message;
+        } catch (Exception e) {
+            statistics.failed(stage);
+            throw e;
+        }
+        /*CHECKSTYLE:ON*/
+    }
+    
+    private AddressCache addressesOf(String templateName) {
+        final AddressCache cache = addresses.get(templateName);
+        if (cache == null) {
+            final AddressCache created = new AddressCache();
+            final AddressCache previous = addresses.putIfAbsent(templateName, created);
+            return previous == null ? created : previous;
+        } else {
+            return cache;
+        }
+    }
+    
+    @Override
+    public void dispose() {
+        statistics.unregisterMBean();
+        if (store != null) {
+            store.stop();
+        }
+        if (delivery != null) {
+            delivery.close();
+        }
     }
 
 }
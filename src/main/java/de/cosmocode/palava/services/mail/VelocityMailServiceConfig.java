@@ -0,0 +1,126 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.services.mail;
+
+/**
+ * Static constant holder class for {@link VelocityMailService} config keys.
+ *
+ * @author Willi Schoenborn
+ */
+public final class VelocityMailServiceConfig {
+
+    public static final String PREFIX = "mail.velocity.";
+    
+    public static final String PROPERTIES = PREFIX + "properties";
+    
+    public static final String HOSTNAME = PREFIX + "hostname";
+    
+    public static final String AUTO_ESCAPE = PREFIX + "autoEscape";
+    
+    public static final String POOL_MAX_CONNECTIONS = PREFIX + "pool.maxConnections";
+    
+    public static final String POOL_MAX_IDLE_TIME = PREFIX + "pool.maxIdleTime";
+    
+    public static final String POOL_MAX_IDLE_TIME_UNIT = PREFIX + "pool.maxIdleTimeUnit";
+    
+    public static final String POOL_MAX_MESSAGES = PREFIX + "pool.maxMessages";
+    
+    public static final String RESOURCES_MAX_SIZE = PREFIX + "resources.maxSize";
+    
+    public static final String RESOURCES_MAPPED = PREFIX + "resources.mapped";
+    
+    public static final String RESOURCES_CHECK_INTERVAL = PREFIX + "resources.checkInterval";
+    
+    public static final String RESOURCES_CHECK_INTERVAL_UNIT = PREFIX + "resources.checkIntervalUnit";
+    
+    public static final String ENCODED_MAX_SIZE = PREFIX + "encoded.maxSize";
+    
+    public static final String STATISTICS = PREFIX + "statistics";
+    
+    public static final String STATISTICS_NAME = PREFIX + "statistics.name";
+    
+    public static final String WARMUP = PREFIX + "warmUp";
+    
+    public static final String WARMUP_THREADS = PREFIX + "warmUp.threads";
+    
+    public static final String WARMUP_SUFFIX = PREFIX + "warmUp.suffix";
+    
+    public static final String WARMUP_MERGES = PREFIX + "warmUp.merges";
+    
+    public static final String RELOAD = PREFIX + "reload";
+    
+    public static final String RELOAD_INTERVAL = PREFIX + "reload.interval";
+    
+    public static final String RELOAD_INTERVAL_UNIT = PREFIX + "reload.intervalUnit";
+    
+    public static final String RELOAD_DEBOUNCE = PREFIX + "reload.debounce";
+    
+    public static final String RELOAD_DEBOUNCE_UNIT = PREFIX + "reload.debounceUnit";
+    
+    public static final String FALLBACK_TIMEOUT = PREFIX + "fallback.timeout";
+    
+    public static final String FALLBACK_TIMEOUT_UNIT = PREFIX + "fallback.timeoutUnit";
+    
+    public static final String GLOBALS = PREFIX + "globals";
+    
+    public static final String MERGE_RENDER_THREADS = PREFIX + "merge.renderThreads";
+    
+    public static final String MERGE_DELIVERY_THREADS = PREFIX + "merge.deliveryThreads";
+    
+    public static final String MERGE_QUEUE_SIZE = PREFIX + "merge.queueSize";
+    
+    public static final String MERGE_CHECKPOINT_INTERVAL = PREFIX + "merge.checkpointInterval";
+    
+    public static final String OUTBOX = PREFIX + "outbox";
+    
+    public static final String OUTBOX_THREADS = PREFIX + "outbox.threads";
+    
+    public static final String OUTBOX_SEGMENT_SIZE = PREFIX + "outbox.segmentSize";
+    
+    public static final String OUTBOX_SYNC = PREFIX + "outbox.sync";
+    
+    public static final String OUTBOX_MAX_ATTEMPTS = PREFIX + "outbox.maxAttempts";
+    
+    public static final String OUTBOX_RETRY_DELAY = PREFIX + "outbox.retryDelay";
+    
+    public static final String OUTBOX_RETRY_DELAY_UNIT = PREFIX + "outbox.retryDelayUnit";
+    
+    public static final String RELAYS = PREFIX + "relays";
+    
+    public static final String RELAY_ROUTING = PREFIX + "relay.routing";
+    
+    public static final String RELAY_MAX_FAILURES = PREFIX + "relay.maxFailures";
+    
+    public static final String RELAY_RETRY_AFTER = PREFIX + "relay.retryAfter";
+    
+    public static final String RELAY_RETRY_AFTER_UNIT = PREFIX + "relay.retryAfterUnit";
+    
+    public static final String ASYNC_THREADS = PREFIX + "async.threads";
+    
+    public static final String ASYNC_QUEUE_SIZE = PREFIX + "async.queueSize";
+    
+    public static final String ASYNC_BACKPRESSURE = PREFIX + "async.backpressure";
+    
+    public static final String ASYNC_SHUTDOWN_TIMEOUT = PREFIX + "async.shutdownTimeout";
+    
+    public static final String ASYNC_SHUTDOWN_TIMEOUT_UNIT = PREFIX + "async.shutdownTimeoutUnit";
+    
+    private VelocityMailServiceConfig() {
+        
+    }
+    
+}
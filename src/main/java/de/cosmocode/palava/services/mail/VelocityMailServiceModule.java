@@ -23,7 +23,11 @@ import com.google.inject.Singleton;
 import de.cosmocode.palava.mail.templating.velocity.VelocityTemplateEngine;
 
 /**
- * Binds the {@link MailService} to the {@link VelocityMailService}.
+ * Binds the {@link MailService} to the {@link VelocityMailService} and the
+ * {@link AsyncMailService} to a worker pool backed by it. Callers choose
+ * between synchronous and asynchronous delivery by injecting either one.
+ * The {@link BatchMailService}, the {@link MailMergeService} and the {@link MailRenderService}
+ * are provided by the same {@link VelocityMailService}.
  *
  * @deprecated use {@link VelocityTemplateEngine}
  * @author Willi Schoenborn
@@ -33,7 +37,12 @@ public final class VelocityMailServiceModule implements Module {
 
     @Override
     public void configure(Binder binder) {
-        binder.bind(MailService.class).to(VelocityMailService.class).in(Singleton.class);
+        binder.bind(VelocityMailService.class).in(Singleton.class);
+        binder.bind(MailService.class).to(VelocityMailService.class);
+        binder.bind(BatchMailService.class).to(VelocityMailService.class);
+        binder.bind(MailMergeService.class).to(VelocityMailService.class);
+        binder.bind(MailRenderService.class).to(VelocityMailService.class);
+        binder.bind(AsyncMailService.class).to(AsyncVelocityMailService.class).in(Singleton.class);
     }
 
 }
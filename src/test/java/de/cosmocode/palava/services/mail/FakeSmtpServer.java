@@ -0,0 +1,291 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A minimal in-process smtp server for tests. It accepts every message,
+ * except for recipients which have been marked as rejected, and keeps
+ * the raw data of all received messages.
+ *
+ * @author Willi Schoenborn
+ */
+final class FakeSmtpServer {
+
+    private static final String CRLF = "\r\n";
+
+    private final ServerSocket server;
+
+    private final List<Socket> clients = new CopyOnWriteArrayList<Socket>();
+
+    private final List<String> messages = new CopyOnWriteArrayList<String>();
+
+    private final Set<String> rejected = new CopyOnWriteArraySet<String>();
+
+    private final Set<String> deferred = new CopyOnWriteArraySet<String>();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private volatile boolean available = true;
+
+    FakeSmtpServer() throws IOException {
+        this.server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final Thread acceptor = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                accept();
+            }
+
+        }, "fake-smtp-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.incrementAndGet();
+            clients.add(client);
+            final Thread handler = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        handle(client);
+                    } catch (IOException e) {
+                        // connection dropped
+                    } finally {
+                        clients.remove(client);
+                        closeQuietly(client);
+                    }
+                }
+
+            });
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+        final Writer writer = new OutputStreamWriter(client.getOutputStream(), "US-ASCII");
+
+        if (!available) {
+            reply(writer, "421 service not available");
+            return;
+        }
+        reply(writer, "220 localhost fake smtp");
+
+        int accepted = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+            if ("EHLO".equals(command)) {
+                reply(writer, "250-localhost" + CRLF + "250 8BITMIME");
+            } else if ("HELO".equals(command) || "NOOP".equals(command) || "RSET".equals(command)) {
+                accepted = 0;
+                reply(writer, "250 ok");
+            } else if ("MAIL".equals(command)) {
+                accepted = 0;
+                reply(writer, "250 ok");
+            } else if ("RCPT".equals(command)) {
+                if (matches(rejected, line)) {
+                    reply(writer, "550 no such user");
+                } else if (matches(deferred, line)) {
+                    reply(writer, "450 mailbox busy, try again later");
+                } else {
+                    accepted++;
+                    reply(writer, "250 ok");
+                }
+            } else if ("DATA".equals(command)) {
+                if (accepted == 0) {
+                    reply(writer, "554 no valid recipients");
+                    continue;
+                }
+                reply(writer, "354 go ahead");
+                final StringBuilder data = new StringBuilder();
+                while ((line = reader.readLine()) != null && !".".equals(line)) {
+                    data.append(line.startsWith("..") ? line.substring(1) : line).append(CRLF);
+                }
+                if (line == null) return;
+                messages.add(data.toString());
+                reply(writer, "250 queued");
+            } else if ("QUIT".equals(command)) {
+                reply(writer, "221 bye");
+                return;
+            } else {
+                reply(writer, "502 not implemented");
+            }
+        }
+    }
+
+    private boolean matches(Set<String> addresses, String line) {
+        for (String address : addresses) {
+            if (line.contains("<" + address + ">")) return true;
+        }
+        return false;
+    }
+
+    private void reply(Writer writer, String reply) throws IOException {
+        writer.write(reply + CRLF);
+        writer.flush();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Creates a session which connects to this server.
+     *
+     * @return a new session
+     */
+    Session newSession() {
+        final Properties properties = new Properties();
+        properties.setProperty("mail.smtp.host", "127.0.0.1");
+        properties.setProperty("mail.smtp.port", Integer.toString(getPort()));
+        properties.setProperty("mail.smtp.connectiontimeout", "5000");
+        properties.setProperty("mail.smtp.timeout", "5000");
+        return Session.getInstance(properties);
+    }
+
+    /**
+     * Creates a simple message with the given subject.
+     *
+     * @param session the session
+     * @param subject the subject
+     * @param recipient the recipient
+     * @return a new message
+     * @throws MessagingException if the message could not be created
+     */
+    static MimeMessage newMessage(Session session, String subject, String recipient) throws MessagingException {
+        final MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
+        message.setSubject(subject);
+        message.setText("Hello " + recipient);
+        return message;
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Provides the number of connections accepted so far.
+     *
+     * @return the number of connections
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Provides the raw data of all received messages, in order of arrival.
+     *
+     * @return all received messages
+     */
+    List<String> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Rejects the given recipient from now on.
+     *
+     * @param address the recipient address
+     */
+    void reject(String address) {
+        rejected.add(address);
+    }
+
+    /**
+     * Defers the given recipient with a temporary failure until {@link #resume(String)}.
+     *
+     * @param address the recipient address
+     */
+    void defer(String address) {
+        deferred.add(address);
+    }
+
+    /**
+     * Accepts a previously deferred recipient again.
+     *
+     * @param address the recipient address
+     */
+    void resume(String address) {
+        deferred.remove(address);
+    }
+
+    /**
+     * Answers new connections with 421 while unavailable.
+     *
+     * @param available false to refuse all new connections
+     */
+    void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    /**
+     * Closes all open connections without notice, like a relay restart would.
+     */
+    void dropConnections() {
+        for (Socket client : clients) {
+            closeQuietly(client);
+        }
+    }
+
+    void stop() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        dropConnections();
+    }
+
+}
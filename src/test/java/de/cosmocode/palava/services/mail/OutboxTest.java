@@ -0,0 +1,328 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.services.mail;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link Outbox}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class OutboxTest {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    
+    private FakeSmtpServer server;
+    
+    private Session session;
+    
+    private File directory;
+    
+    /**
+     * Starts the smtp server.
+     * 
+     * @throws Exception should not happen
+     */
+    @Before
+    public void start() throws Exception {
+        server = new FakeSmtpServer();
+        session = server.newSession();
+        directory = folder.newFolder("outbox");
+    }
+    
+    /**
+     * Stops the smtp server.
+     */
+    @After
+    public void stop() {
+        server.stop();
+    }
+    
+    private Outbox open(int threads, long segmentSize) throws IOException {
+        return open(threads, segmentSize, TimeUnit.MINUTES.toMillis(1));
+    }
+    
+    private Outbox open(int threads, long segmentSize, long retryDelay) throws IOException {
+        return new Outbox(directory, session, new TransportPool(session, threads, 1, TimeUnit.MINUTES, 0),
+            threads, segmentSize, true, 100, retryDelay, TimeUnit.MILLISECONDS);
+    }
+    
+    private MimeMessage message(int index) throws Exception {
+        return FakeSmtpServer.newMessage(session, "message " + index, "rcpt@example.com");
+    }
+    
+    private void awaitMessages(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (server.getMessages().size() < count) {
+            Assert.assertTrue("Timed out waiting for " + count + " messages", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+    
+    private void awaitSegments(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (files(directory, ".spool").length != count) {
+            Assert.assertTrue("Timed out waiting for compaction", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+    
+    private static File[] files(File dir, final String suffix) {
+        return dir.listFiles(new FilenameFilter() {
+            
+            @Override
+            public boolean accept(File parent, String name) {
+                return name.endsWith(suffix);
+            }
+            
+        });
+    }
+    
+    /**
+     * Tests that spooled messages are delivered and delivered segments are deleted.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void deliverAndCompact() throws Exception {
+        // every message gets a segment of its own
+        final Outbox outbox = open(1, 1);
+        try {
+            for (int i = 0; i < 5; i++) {
+                outbox.deliver(message(i));
+            }
+            awaitMessages(5);
+            // only the segment currently written stays
+            awaitSegments(1);
+        } finally {
+            outbox.close();
+        }
+        Assert.assertEquals(5, server.getMessages().size());
+    }
+    
+    /**
+     * Tests that many delivery threads deliver every message exactly once and
+     * still compact all segments.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void parallelDelivery() throws Exception {
+        final Outbox outbox = open(4, 4096);
+        try {
+            for (int i = 0; i < 50; i++) {
+                outbox.deliver(message(i));
+            }
+            awaitMessages(50);
+            awaitSegments(1);
+        } finally {
+            outbox.close();
+        }
+        Assert.assertEquals(50, server.getMessages().size());
+    }
+    
+    /**
+     * Tests that undelivered messages are delivered after a restart, keeping their message id.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void restartRecovery() throws Exception {
+        server.setAvailable(false);
+        final MimeMessage first = message(1);
+        final MimeMessage second = message(2);
+        final Outbox outbox = open(1, 1024 * 1024);
+        outbox.deliver(first);
+        outbox.deliver(second);
+        outbox.close();
+        Assert.assertEquals(0, server.getMessages().size());
+        
+        server.setAvailable(true);
+        final Outbox restarted = open(1, 1024 * 1024);
+        try {
+            awaitMessages(2);
+        } finally {
+            restarted.close();
+        }
+        Assert.assertEquals(2, server.getMessages().size());
+        Assert.assertTrue(server.getMessages().get(0).contains(first.getMessageID()));
+        Assert.assertTrue(server.getMessages().get(1).contains(second.getMessageID()));
+    }
+    
+    /**
+     * Tests that a torn record at the end of a segment is skipped after a restart
+     * while the complete records before it are delivered.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void tornRecord() throws Exception {
+        server.setAvailable(false);
+        final Outbox outbox = open(1, 1024 * 1024);
+        outbox.deliver(message(1));
+        outbox.close();
+        
+        // a crash in the middle of appending the next record
+        final File[] segments = files(directory, ".spool");
+        Assert.assertEquals(1, segments.length);
+        final RandomAccessFile segment = new RandomAccessFile(segments[0], "rw");
+        try {
+            segment.seek(segment.length());
+            segment.writeInt(1000);
+            segment.writeLong(42L);
+            segment.write(new byte[10]);
+        } finally {
+            segment.close();
+        }
+        
+        server.setAvailable(true);
+        final Outbox restarted = open(1, 1024 * 1024);
+        try {
+            awaitMessages(1);
+            awaitSegments(1);
+            Assert.assertFalse("torn segment has not been deleted", segments[0].exists());
+            
+            restarted.deliver(message(2));
+            awaitMessages(2);
+        } finally {
+            restarted.close();
+        }
+        Assert.assertEquals(2, server.getMessages().size());
+    }
+    
+    /**
+     * Tests that messages with rejected recipients are parked without retrying.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void rejectedRecipients() throws Exception {
+        server.reject("unknown@example.com");
+        final Outbox outbox = open(1, 1024 * 1024);
+        try {
+            outbox.deliver(FakeSmtpServer.newMessage(session, "rejected", "unknown@example.com"));
+            // delivered after the rejected message has been parked
+            outbox.deliver(message(2));
+            awaitMessages(1);
+        } finally {
+            outbox.close();
+        }
+        Assert.assertEquals(1, files(new File(directory, "failed"), ".eml").length);
+    }
+    
+    /**
+     * Tests that recipients deferred with a temporary failure are retried instead of parked.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void deferredRecipients() throws Exception {
+        server.defer("busy@example.com");
+        final Outbox outbox = open(1, 1024 * 1024, 20);
+        try {
+            outbox.deliver(FakeSmtpServer.newMessage(session, "deferred", "busy@example.com"));
+            Thread.sleep(200);
+            Assert.assertEquals(0, server.getMessages().size());
+            
+            server.resume("busy@example.com");
+            awaitMessages(1);
+        } finally {
+            outbox.close();
+        }
+        Assert.assertEquals(0, files(new File(directory, "failed"), ".eml").length);
+    }
+    
+    /**
+     * Tests that a restart resumes delivery although a later segment has been deleted
+     * while an earlier one was still pending.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void restartWithCompactedSuccessor() throws Exception {
+        server.defer("busy@example.com");
+        // every message gets a segment of its own
+        final Outbox outbox = open(2, 1);
+        outbox.deliver(FakeSmtpServer.newMessage(session, "pending", "busy@example.com"));
+        outbox.deliver(message(1));
+        outbox.deliver(message(2));
+        awaitMessages(2);
+        
+        final File successor = new File(directory, String.format("%020d.spool", 1L));
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (successor.exists()) {
+            Assert.assertTrue("Timed out waiting for compaction", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(new File(directory, String.format("%020d.spool", 0L)).exists());
+        outbox.close();
+        
+        server.resume("busy@example.com");
+        final Outbox restarted = open(2, 1);
+        try {
+            awaitMessages(3);
+            restarted.deliver(message(3));
+            awaitMessages(4);
+            awaitSegments(1);
+        } finally {
+            restarted.close();
+        }
+    }
+    
+    /**
+     * Tests that a record waiting for a retry stops reading ahead once the window is full.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void readAheadWindow() throws Exception {
+        server.defer("busy@example.com");
+        final Outbox outbox = open(2, 1024 * 1024);
+        try {
+            outbox.deliver(FakeSmtpServer.newMessage(session, "pending", "busy@example.com"));
+            for (int i = 0; i < 30; i++) {
+                outbox.deliver(message(i));
+            }
+            // two threads, eight records each, one of them is the pending one
+            awaitMessages(15);
+            Thread.sleep(200);
+            Assert.assertEquals(15, server.getMessages().size());
+        } finally {
+            outbox.close();
+        }
+    }
+    
+}
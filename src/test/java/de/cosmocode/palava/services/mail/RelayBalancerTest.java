@@ -0,0 +1,167 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.SendFailedException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import de.cosmocode.palava.mail.templating.velocity.PipelineStatistics;
+
+/**
+ * Tests {@link RelayBalancer}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class RelayBalancerTest {
+
+    private FakeSmtpServer first;
+    
+    private FakeSmtpServer second;
+    
+    private PipelineStatistics statistics;
+    
+    /**
+     * Starts two smtp servers.
+     * 
+     * @throws Exception should not happen
+     */
+    @Before
+    public void start() throws Exception {
+        first = new FakeSmtpServer();
+        second = new FakeSmtpServer();
+        statistics = new PipelineStatistics();
+        statistics.setEnabled(true);
+    }
+    
+    /**
+     * Stops both smtp servers.
+     */
+    @After
+    public void stop() {
+        first.stop();
+        second.stop();
+    }
+    
+    private RelayBalancer balancer(int maxFailures, long retryAfter, TimeUnit retryAfterUnit) {
+        final List<RelayBalancer.Relay> relays = ImmutableList.of(
+            new RelayBalancer.Relay("first", 1, new DirectDelivery(first.newSession())),
+            new RelayBalancer.Relay("second", 1, new DirectDelivery(second.newSession()))
+        );
+        return new RelayBalancer(relays, Routing.WEIGHTED_ROUND_ROBIN, maxFailures, 
+            retryAfter, retryAfterUnit, statistics);
+    }
+    
+    private void send(RelayBalancer balancer, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            balancer.deliver(FakeSmtpServer.newMessage(first.newSession(), "message " + i, "rcpt@example.com"));
+        }
+    }
+    
+    /**
+     * Tests that messages are spread over all healthy relays.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void roundRobin() throws Exception {
+        send(balancer(1, 1, TimeUnit.MINUTES), 4);
+        Assert.assertEquals(2, first.getMessages().size());
+        Assert.assertEquals(2, second.getMessages().size());
+        Assert.assertTrue(statistics.getMaxLatencies().containsKey("RELAY first"));
+        Assert.assertTrue(statistics.getMaxLatencies().containsKey("RELAY second"));
+    }
+    
+    /**
+     * Tests that messages fail over to the remaining relay and every failed
+     * attempt is counted once, as a relay error.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void failover() throws Exception {
+        first.setAvailable(false);
+        send(balancer(100, 1, TimeUnit.MINUTES), 4);
+        Assert.assertEquals(0, first.getMessages().size());
+        Assert.assertEquals(4, second.getMessages().size());
+        Assert.assertEquals(Long.valueOf(first.getConnections()), statistics.getErrors().get("RELAY"));
+        Assert.assertEquals(Long.valueOf(0L), statistics.getErrors().get("SEND"));
+    }
+    
+    /**
+     * Tests that a relay failing too often is skipped.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void markDown() throws Exception {
+        first.setAvailable(false);
+        send(balancer(2, 1, TimeUnit.MINUTES), 10);
+        Assert.assertEquals(2, first.getConnections());
+        Assert.assertEquals(10, second.getMessages().size());
+    }
+    
+    /**
+     * Tests that a relay marked down gets another chance after the retry time
+     * and takes its share again once it succeeds.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void recovery() throws Exception {
+        first.setAvailable(false);
+        final RelayBalancer balancer = balancer(1, 100, TimeUnit.MILLISECONDS);
+        send(balancer, 2);
+        Assert.assertEquals(1, first.getConnections());
+        
+        first.setAvailable(true);
+        Thread.sleep(200);
+        send(balancer, 4);
+        Assert.assertEquals(2, first.getMessages().size());
+        Assert.assertEquals(4, second.getMessages().size());
+    }
+    
+    /**
+     * Tests that rejected recipients are not failed over, every relay would reject them.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void rejectedRecipients() throws Exception {
+        first.reject("unknown@example.com");
+        second.reject("unknown@example.com");
+        try {
+            balancer(1, 1, TimeUnit.MINUTES).deliver(
+                FakeSmtpServer.newMessage(first.newSession(), "rejected", "unknown@example.com"));
+            Assert.fail("Expected SendFailedException");
+        } catch (SendFailedException e) {
+            // expected
+        }
+        Assert.assertEquals(1, first.getConnections() + second.getConnections());
+        Assert.assertEquals(Long.valueOf(0L), statistics.getErrors().get("RELAY"));
+    }
+    
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.services.mail;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link TransportPool}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class TransportPoolTest {
+
+    private FakeSmtpServer server;
+
+    private Session session;
+
+    /**
+     * Starts the smtp server.
+     *
+     * @throws Exception should not happen
+     */
+    @Before
+    public void start() throws Exception {
+        server = new FakeSmtpServer();
+        session = server.newSession();
+    }
+
+    /**
+     * Stops the smtp server.
+     */
+    @After
+    public void stop() {
+        server.stop();
+    }
+
+    private void send(TransportPool pool, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            pool.deliver(FakeSmtpServer.newMessage(session, "message " + i, "rcpt@example.com"));
+        }
+    }
+
+    /**
+     * Tests that consecutive messages share one connection.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void reuse() throws Exception {
+        final TransportPool pool = new TransportPool(session, 2, 1, TimeUnit.MINUTES, 0);
+        try {
+            send(pool, 5);
+        } finally {
+            pool.close();
+        }
+        Assert.assertEquals(5, server.getMessages().size());
+        Assert.assertEquals(1, server.getConnections());
+    }
+
+    /**
+     * Tests that connections idle for longer than the maximum idle time are replaced.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void idleEviction() throws Exception {
+        final TransportPool pool = new TransportPool(session, 1, 50, TimeUnit.MILLISECONDS, 0);
+        try {
+            send(pool, 1);
+            Thread.sleep(200);
+            send(pool, 1);
+        } finally {
+            pool.close();
+        }
+        Assert.assertEquals(2, server.getMessages().size());
+        Assert.assertEquals(2, server.getConnections());
+    }
+
+    /**
+     * Tests that connections are closed after the maximum number of messages.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void maxMessages() throws Exception {
+        final TransportPool pool = new TransportPool(session, 1, 1, TimeUnit.MINUTES, 2);
+        try {
+            send(pool, 5);
+        } finally {
+            pool.close();
+        }
+        Assert.assertEquals(5, server.getMessages().size());
+        Assert.assertEquals(3, server.getConnections());
+    }
+
+    /**
+     * Tests that connections closed by the relay are discarded instead of reused.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void brokenConnection() throws Exception {
+        final TransportPool pool = new TransportPool(session, 1, 1, TimeUnit.MINUTES, 0);
+        try {
+            send(pool, 1);
+            server.dropConnections();
+            send(pool, 1);
+        } finally {
+            pool.close();
+        }
+        Assert.assertEquals(2, server.getMessages().size());
+        Assert.assertEquals(2, server.getConnections());
+    }
+
+    /**
+     * Tests that rejected recipients keep the connection.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void rejectedRecipient() throws Exception {
+        server.reject("unknown@example.com");
+        final TransportPool pool = new TransportPool(session, 1, 1, TimeUnit.MINUTES, 0);
+        try {
+            try {
+                pool.deliver(FakeSmtpServer.newMessage(session, "rejected", "unknown@example.com"));
+                Assert.fail("Expected SendFailedException");
+            } catch (SendFailedException e) {
+                // expected
+            }
+            send(pool, 1);
+        } finally {
+            pool.close();
+        }
+        Assert.assertEquals(1, server.getMessages().size());
+        Assert.assertEquals(1, server.getConnections());
+    }
+
+}